@@ -0,0 +1,261 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streams a file over HTTP to disk, resuming a partial download with a range request,
+ * and verifies its SHA-256 while the bytes arrive.
+ * <p>
+ * All the bytes pass through one fixed buffer, the file is never held in memory.
+ * An instance must only be used by one thread at a time.
+ */
+class ApkDownloader {
+
+    /**
+     * Callback for the download progress. Called on the downloading thread.
+     */
+    interface ProgressListener {
+        void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final String LOCK_SUFFIX = ".lock";
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Downloads the url to the target file. An existing partial target is resumed.
+     * A file that fails the verification is deleted.
+     * <p>
+     * The target is guarded by a lock file next to it, so that two downloads, in this process or
+     * another one, never append to the same file. The second one fails right away.
+     *
+     * @param url            the url
+     * @param target         the target file
+     * @param expectedSha256 the expected SHA-256 of the whole file, in hex
+     * @param listener       the progress listener, or null
+     * @throws IOException if the download fails, the target is being downloaded, or the file does not match the SHA-256
+     */
+    void download(URL url, File target, String expectedSha256, ProgressListener listener) throws IOException {
+        // A separate file, closing any descriptor of the target would release a lock held on it.
+        FileChannel lockChannel = new RandomAccessFile(target.getPath() + LOCK_SUFFIX, "rw").getChannel();
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+
+            if (lock == null)
+                throw new IOException("Already downloading " + target);
+
+            downloadLocked(url, target, expectedSha256, listener);
+        } finally {
+            // Releases the lock.
+            lockChannel.close();
+        }
+    }
+
+    private void downloadLocked(URL url, File target, String expectedSha256, ProgressListener listener) throws IOException {
+        MessageDigest digest = newDigest();
+
+        // The digest has to cover the bytes of the previous attempts too.
+        long existing = target.exists() ? hashFile(target, digest) : 0;
+
+        HttpURLConnection connection = open(url, existing);
+        try {
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode == 416 && existing > 0) {
+                // The partial file is complete, or does not belong to this url anymore.
+                if (matches(digest, expectedSha256))
+                    return;
+
+                connection.disconnect();
+                digest.reset();
+                existing = 0;
+                connection = open(url, 0);
+                responseCode = connection.getResponseCode();
+            }
+
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range, start over.
+                if (existing > 0) {
+                    digest.reset();
+                    existing = 0;
+                }
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Unexpected HTTP response: " + responseCode);
+            }
+
+            long contentLength = contentLength(connection);
+            long totalBytes = contentLength >= 0 ? existing + contentLength : -1;
+
+            InputStream input = connection.getInputStream();
+            FileOutputStream output = new FileOutputStream(target, existing > 0);
+            try {
+                copy(Channels.newChannel(input), output.getChannel(), digest, existing, totalBytes, listener);
+                output.getFD().sync();
+            } finally {
+                output.close();
+                input.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        if (!matches(digest, expectedSha256)) {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+            throw new IOException("SHA-256 mismatch for " + url);
+        }
+    }
+
+    /**
+     * Copies a file to an output channel through the same fixed buffer.
+     *
+     * @param source the file
+     * @param output the output
+     * @throws IOException if the copy fails
+     */
+    void copyFile(File source, WritableByteChannel output) throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileChannel channel = input.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                output.write(buffer);
+                buffer.compact();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void copy(ReadableByteChannel input, FileChannel output, MessageDigest digest,
+                      long bytesDownloaded, long totalBytes, ProgressListener listener) throws IOException {
+        buffer.clear();
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            if (read == 0)
+                continue;
+
+            buffer.flip();
+            digest.update(buffer);
+            // The digest consumed the buffer, flip again to write the same bytes.
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+            buffer.clear();
+
+            bytesDownloaded += read;
+            if (listener != null)
+                listener.onProgress(bytesDownloaded, totalBytes);
+        }
+    }
+
+    private long hashFile(File file, MessageDigest digest) throws IOException {
+        long length = 0;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            buffer.clear();
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                length += read;
+            }
+        } finally {
+            input.close();
+        }
+        return length;
+    }
+
+    /**
+     * Opens a connection with the connect and read timeouts of the downloads.
+     *
+     * @param url    the url
+     * @param offset the byte offset to resume from, or 0
+     * @return the connection
+     * @throws IOException if the connection can not be opened
+     */
+    static HttpURLConnection open(URL url, long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Transparent gzip would break the byte offsets of the range.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (offset > 0)
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        return connection;
+    }
+
+    private static long contentLength(HttpURLConnection connection) {
+        String header = connection.getHeaderField("Content-Length");
+        if (header == null)
+            return -1;
+
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean matches(MessageDigest digest, String expectedSha256) {
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString().equalsIgnoreCase(expectedSha256);
+    }
+}
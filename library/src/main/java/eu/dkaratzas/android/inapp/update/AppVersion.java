@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+/**
+ * Reads the versionCode and the install times of the app.
+ */
+final class AppVersion {
+
+    private AppVersion() {
+    }
+
+    @SuppressWarnings("deprecation")
+    static long versionCode(PackageInfo packageInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            return packageInfo.getLongVersionCode();
+
+        return packageInfo.versionCode;
+    }
+
+    /**
+     * @param context the context
+     * @return the versionCode of the installed app
+     * @throws PackageManager.NameNotFoundException if the package info can not be read
+     */
+    static long installedVersionCode(Context context) throws PackageManager.NameNotFoundException {
+        return versionCode(installedPackageInfo(context));
+    }
+
+    /**
+     * @param context the context
+     * @return the package info of the installed app
+     * @throws PackageManager.NameNotFoundException if the package info can not be read
+     */
+    static PackageInfo installedPackageInfo(Context context) throws PackageManager.NameNotFoundException {
+        return context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+    }
+
+    /**
+     * Tells an update from the first install when no earlier versionCode is known,
+     * e.g. when the library itself arrived with the update.
+     *
+     * @param packageInfo the package info of the installed app
+     * @return true if the installed app has been updated since its first install
+     */
+    static boolean isUpdated(PackageInfo packageInfo) {
+        return packageInfo.firstInstallTime != packageInfo.lastUpdateTime;
+    }
+}
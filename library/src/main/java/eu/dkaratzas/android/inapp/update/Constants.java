@@ -4,10 +4,25 @@ public class Constants {
 
     public enum UpdateMode {
         FLEXIBLE,
-        IMMEDIATE
+        IMMEDIATE,
+        /**
+         * Picks {@link #FLEXIBLE} or {@link #IMMEDIATE} for each update, from its priority and staleness.
+         */
+        AUTO
     }
 
     public static final int UPDATE_ERROR_START_APP_UPDATE_FLEXIBLE = 100;
     public static final int UPDATE_ERROR_START_APP_UPDATE_IMMEDIATE = 101;
+    public static final int UPDATE_ERROR_START_MODULE_INSTALL = 102;
+    public static final int UPDATE_ERROR_START_MODULE_CONFIRMATION = 103;
+    public static final int UPDATE_ERROR_MODULE_DEFERRED_UNINSTALL = 104;
+    public static final int UPDATE_ERROR_SELF_HOSTED_CHECK = 105;
+    public static final int UPDATE_ERROR_SELF_HOSTED_DOWNLOAD = 106;
+    public static final int UPDATE_ERROR_SELF_HOSTED_INSTALL = 107;
+    public static final int UPDATE_ERROR_CHECK_APP_UPDATE = 108;
+
+    public static final int SUPPRESSED_NONE = 0;
+    public static final int SUPPRESSED_POWER_SAVE = 1;
+    public static final int SUPPRESSED_THERMAL = 2;
 
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs background downloads when the main thread is idle and the network allows it.
+ * <p>
+ * App updates take precedence: while a flexible app update is downloading, queued work waits
+ * until the download finishes. Queued work also waits while the active network is metered, and on
+ * Android 5.0 and higher runs as soon as an unmetered network connects. Must be used on the main thread.
+ */
+class DownloadScheduler {
+
+    private final ConnectivityManager connectivityManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Work> pending = new ArrayList<>();
+    private boolean appUpdateDownloading = false;
+    private boolean idleHandlerQueued = false;
+    // A ConnectivityManager.NetworkCallback, registered while work is queued.
+    private Object networkCallback;
+
+    private static class Work {
+        final Object owner;
+        final Runnable runnable;
+
+        Work(Object owner, Runnable runnable) {
+            this.owner = owner;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    private final MessageQueue.IdleHandler idleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            idleHandlerQueued = false;
+
+            if (canDownloadInBackground()) {
+                List<Work> ready = new ArrayList<>(pending);
+                pending.clear();
+
+                for (Work work : ready) {
+                    work.runnable.run();
+                }
+
+                if (pending.isEmpty())
+                    unregisterNetworkCallback();
+            }
+
+            // One shot, rescheduled by the next state change or request.
+            return false;
+        }
+    };
+
+    DownloadScheduler(Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Queues a background download, to run once the main thread is idle and the network allows it.
+     *
+     * @param owner    the owner of the work, see {@link #cancel(Object)}
+     * @param runnable the work that starts the download
+     */
+    void runWhenIdle(Object owner, Runnable runnable) {
+        pending.add(new Work(owner, runnable));
+        schedule();
+    }
+
+    /**
+     * Drops the queued work of an owner that goes away, e.g. a manager whose activity is destroyed.
+     *
+     * @param owner the owner
+     */
+    void cancel(Object owner) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (pending.get(i).owner == owner)
+                pending.remove(i);
+        }
+
+        if (pending.isEmpty())
+            unregisterNetworkCallback();
+    }
+
+    /**
+     * Re-evaluates the queued work, for example after a connectivity or lifecycle change.
+     */
+    void schedule() {
+        if (pending.isEmpty())
+            return;
+
+        registerNetworkCallback();
+
+        if (!idleHandlerQueued) {
+            Looper.myQueue().addIdleHandler(idleHandler);
+            idleHandlerQueued = true;
+        }
+    }
+
+    void setAppUpdateDownloading(boolean appUpdateDownloading) {
+        boolean finished = this.appUpdateDownloading && !appUpdateDownloading;
+        this.appUpdateDownloading = appUpdateDownloading;
+
+        if (finished)
+            schedule();
+    }
+
+    boolean isAppUpdateDownloading() {
+        return appUpdateDownloading;
+    }
+
+    boolean canDownloadInBackground() {
+        return !appUpdateDownloading && !isNetworkMetered();
+    }
+
+    private void registerNetworkCallback() {
+        if (networkCallback != null || connectivityManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+
+        networkCallback = newNetworkCallback();
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+                .build();
+        connectivityManager.registerNetworkCallback(request, (ConnectivityManager.NetworkCallback) networkCallback);
+    }
+
+    private void unregisterNetworkCallback() {
+        if (networkCallback == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+
+        connectivityManager.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) networkCallback);
+        networkCallback = null;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivityManager.NetworkCallback newNetworkCallback() {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                // Called on a binder thread, the queue belongs to the main thread.
+                mainHandler.post(scheduleRunnable);
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                // E.g. the network was validated and became the default one.
+                mainHandler.post(scheduleRunnable);
+            }
+        };
+    }
+
+    private boolean isNetworkMetered() {
+        if (connectivityManager == null)
+            return true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            return connectivityManager.isActiveNetworkMetered();
+
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo == null || networkInfo.getType() != ConnectivityManager.TYPE_WIFI;
+    }
+}
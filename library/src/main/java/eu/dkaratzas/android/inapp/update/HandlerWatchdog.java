@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+
+import static eu.dkaratzas.android.inapp.update.InAppUpdateManager.HandlerBudgetListener;
+
+/**
+ * Times the {@link InAppUpdateManager.InAppUpdateHandler} callbacks against a main thread budget.
+ * <p>
+ * Every invocation costs two {@link System#nanoTime()} calls, the listener is only
+ * called for the invocations that exceed the budget.
+ */
+class HandlerWatchdog {
+
+    static final String EVENT_STATUS = "onInAppUpdateStatus";
+    static final String EVENT_ERROR = "onInAppUpdateError";
+
+    private final long budgetNanos;
+    private final HandlerBudgetListener listener;
+    private final boolean debuggable;
+    private boolean failFast = false;
+
+    HandlerWatchdog(Context context, long budgetMillis, HandlerBudgetListener listener) {
+        if (budgetMillis <= 0)
+            throw new IllegalArgumentException("Invalid handler budget: " + budgetMillis);
+
+        this.budgetNanos = budgetMillis * 1000000L;
+        this.listener = listener;
+        this.debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
+    /**
+     * Throw when the budget is exceeded. Only applies to debuggable builds.
+     *
+     * @param failFast true to throw
+     */
+    void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Checks the duration of a handler invocation.
+     *
+     * @param handler    the handler that was invoked
+     * @param event      the event that was delivered
+     * @param startNanos the {@link System#nanoTime()} before the invocation
+     */
+    void check(Object handler, String event, long startNanos) {
+        long durationNanos = System.nanoTime() - startNanos;
+        if (durationNanos <= budgetNanos)
+            return;
+
+        String handlerClass = handler.getClass().getName();
+        long durationMillis = durationNanos / 1000000L;
+
+        if (listener != null)
+            listener.onHandlerBudgetExceeded(handlerClass, event, durationMillis, budgetNanos / 1000000L);
+
+        if (failFast && debuggable)
+            throw new IllegalStateException(handlerClass + "." + event + "() took " + durationMillis
+                    + "ms on the main thread, the budget is " + budgetNanos / 1000000L + "ms");
+    }
+}
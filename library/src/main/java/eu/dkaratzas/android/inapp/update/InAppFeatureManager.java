@@ -0,0 +1,409 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.IntentSender;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleObserver;
+import androidx.lifecycle.OnLifecycleEvent;
+
+import com.google.android.play.core.splitinstall.SplitInstallManager;
+import com.google.android.play.core.splitinstall.SplitInstallManagerFactory;
+import com.google.android.play.core.splitinstall.SplitInstallRequest;
+import com.google.android.play.core.splitinstall.SplitInstallSessionState;
+import com.google.android.play.core.splitinstall.SplitInstallStateUpdatedListener;
+import com.google.android.play.core.splitinstall.model.SplitInstallSessionStatus;
+import com.google.android.play.core.tasks.OnFailureListener;
+import com.google.android.play.core.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static eu.dkaratzas.android.inapp.update.InAppUpdateManager.HandlerBudgetListener;
+import static eu.dkaratzas.android.inapp.update.InAppUpdateManager.InAppUpdateHandler;
+
+/**
+ * A simple implementation of on demand dynamic feature module installs,
+ * the sibling of {@link InAppUpdateManager}.
+ * <p>
+ * Module installs are reported through the same {@link InAppUpdateHandler}, with an
+ * {@link InAppUpdateStatus} where {@link InAppUpdateStatus#isModuleInstall()} is true.
+ * Prefetched modules share the download scheduling of app updates: they are only downloaded
+ * while the main thread is idle, the network is not metered and no app update is downloading.
+ * <p>
+ * <div class="special reference">
+ * <h3>Play Feature Delivery</h3>
+ * <p>For more information about on demand delivery you can check the official
+ * <a href="https://developer.android.com/guide/playcore/feature-delivery/on-demand">documentation</a>
+ * </p>
+ * </div>
+ */
+public class InAppFeatureManager implements LifecycleObserver {
+
+    // region Declarations
+    private static final String LOG_TAG = "InAppFeatureManager";
+    private AppCompatActivity activity;
+    private InAppUpdateCoordinator coordinator;
+    private SplitInstallManager splitInstallManager;
+    private DownloadScheduler downloadScheduler;
+    private UpdateTrace trace;
+    private int requestCode = 64535;
+    private InAppUpdateHandler handler;
+    private HandlerWatchdog handlerWatchdog;
+    private InAppUpdateStatus inAppUpdateStatus = new InAppUpdateStatus();
+    private final Set<Integer> confirmedSessionIds = new HashSet<>();
+    private SplitInstallSessionState pendingConfirmation;
+    private boolean pendingStatus = false;
+
+
+    private SplitInstallStateUpdatedListener splitInstallStateUpdatedListener = new SplitInstallStateUpdatedListener() {
+        @Override
+        public void onStateUpdate(SplitInstallSessionState state) {
+            onSessionState(state, true);
+        }
+    };
+    //endregion
+
+    //region Constructor
+
+    /**
+     * Creates a builder that uses the default requestCode.
+     * <p>
+     * Every activity gets one manager and one Play Core listener. Calling this again for the
+     * same activity returns the manager that is already wired to it.
+     *
+     * @param activity the activity
+     * @return the {@link InAppFeatureManager} instance of the activity
+     */
+    public static InAppFeatureManager Builder(AppCompatActivity activity) {
+        InAppFeatureManager manager = InAppUpdateCoordinator.getInstance(activity).findFeatureManager(activity);
+        if (manager == null) {
+            manager = new InAppFeatureManager(activity);
+        }
+        return manager;
+    }
+
+    /**
+     * Creates a builder
+     *
+     * @param activity    the activity
+     * @param requestCode the request code to later monitor the user confirmation via onActivityResult()
+     * @return the {@link InAppFeatureManager} instance of the activity
+     */
+    public static InAppFeatureManager Builder(AppCompatActivity activity, int requestCode) {
+        InAppFeatureManager manager = Builder(activity);
+        manager.requestCode = requestCode;
+        return manager;
+    }
+
+    private InAppFeatureManager(AppCompatActivity activity) {
+        this.activity = activity;
+
+        splitInstallManager = SplitInstallManagerFactory.create(activity);
+        coordinator = InAppUpdateCoordinator.getInstance(activity);
+        downloadScheduler = coordinator.getDownloadScheduler();
+        trace = coordinator.getTrace();
+
+        coordinator.attach(this);
+        activity.getLifecycle().addObserver(this);
+        splitInstallManager.registerListener(splitInstallStateUpdatedListener);
+    }
+    //endregion
+
+    // region Setters
+
+    /**
+     * Set the callback handler
+     *
+     * @param handler the handler
+     * @return the feature manager instance
+     */
+    public InAppFeatureManager handler(InAppUpdateHandler handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Time every {@link InAppUpdateHandler} invocation against a main thread budget,
+     * see {@link InAppUpdateManager#handlerWatchdog(long, HandlerBudgetListener)}.
+     *
+     * @param budgetMillis the budget of a handler invocation
+     * @param listener     the listener for the invocations that exceed the budget
+     * @return the feature manager instance
+     */
+    public InAppFeatureManager handlerWatchdog(long budgetMillis, HandlerBudgetListener listener) {
+        this.handlerWatchdog = new HandlerWatchdog(activity, budgetMillis, listener);
+        return this;
+    }
+
+    /**
+     * Throw an {@link IllegalStateException} when a handler invocation exceeds the
+     * {@link #handlerWatchdog(long, HandlerBudgetListener)} budget. Only applies to debuggable builds.
+     * Default is false.
+     *
+     * @param failFast true to throw
+     * @return the feature manager instance
+     */
+    public InAppFeatureManager handlerWatchdogFailFast(boolean failFast) {
+        if (handlerWatchdog == null)
+            throw new IllegalStateException("handlerWatchdog() must be set first");
+
+        handlerWatchdog.setFailFast(failFast);
+        return this;
+    }
+
+    //endregion
+
+    //region Lifecycle
+    @OnLifecycleEvent(Lifecycle.Event.ON_START)
+    public void onStart() {
+        // Deliver the latest status that was held back while the activity was stopped.
+        if (pendingStatus) {
+            pendingStatus = false;
+            reportStatus();
+        }
+    }
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_RESUME)
+    public void onResume() {
+        // A confirmation that arrived in the background is asked now.
+        if (pendingConfirmation != null) {
+            SplitInstallSessionState state = pendingConfirmation;
+            pendingConfirmation = null;
+            startConfirmationDialog(state);
+        }
+
+        // Report the sessions that are still running, they may have progressed while the activity was in the background.
+        // Finished sessions were already reported, and a confirmation is never asked again.
+        splitInstallManager
+                .getSessionStates()
+                .addOnSuccessListener(new OnSuccessListener<List<SplitInstallSessionState>>() {
+                    @Override
+                    public void onSuccess(List<SplitInstallSessionState> states) {
+                        for (SplitInstallSessionState state : states) {
+                            if (isActive(state))
+                                onSessionState(state, false);
+                        }
+                    }
+                });
+
+        downloadScheduler.schedule();
+    }
+
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+    public void onDestroy() {
+        // A queued prefetch would keep the activity reachable.
+        downloadScheduler.cancel(this);
+        splitInstallManager.unregisterListener(splitInstallStateUpdatedListener);
+        activity.getLifecycle().removeObserver(this);
+        coordinator.detach(this);
+    }
+    //endregion
+
+    //region Methods
+
+    /**
+     * Checks if a dynamic feature module is already installed.
+     *
+     * @param moduleName the module name
+     * @return true if the module is installed
+     */
+    public boolean isInstalled(String moduleName) {
+        return splitInstallManager.getInstalledModules().contains(moduleName);
+    }
+
+    /**
+     * Requests the immediate install of the given modules. The progress is reported to the handler.
+     *
+     * @param moduleNames the module names
+     */
+    public void installModules(String... moduleNames) {
+        List<String> missing = missingModules(Arrays.asList(moduleNames));
+        if (missing.isEmpty())
+            return;
+
+        startInstall(missing);
+    }
+
+    /**
+     * Downloads the given modules in the background, once the main thread is idle, the network is
+     * not metered and no app update is downloading. The progress is reported to the handler.
+     * A prefetch that has not started when the activity is destroyed is dropped.
+     *
+     * @param moduleNames the module names
+     */
+    public void prefetchModules(String... moduleNames) {
+        final List<String> modules = Arrays.asList(moduleNames);
+
+        downloadScheduler.runWhenIdle(this, new Runnable() {
+            @Override
+            public void run() {
+                List<String> missing = missingModules(modules);
+                if (!missing.isEmpty())
+                    startInstall(missing);
+            }
+        });
+    }
+
+    /**
+     * Uninstalls the given modules at a later time chosen by Google Play,
+     * typically while the device is idle.
+     *
+     * @param moduleNames the module names
+     */
+    public void deferredUninstallModules(String... moduleNames) {
+        splitInstallManager
+                .deferredUninstall(Arrays.asList(moduleNames))
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        UpdateLog.e(LOG_TAG, "error in deferredUninstallModules", e);
+                        reportUpdateError(Constants.UPDATE_ERROR_MODULE_DEFERRED_UNINSTALL, e);
+                    }
+                });
+    }
+    //endregion
+
+    //region Package Methods
+
+    AppCompatActivity getActivity() {
+        return activity;
+    }
+
+    //endregion
+
+    //region Private Methods
+
+    /**
+     * Reports a session state, and asks for the user's confirmation once per session when needed.
+     *
+     * @param state             the session state
+     * @param allowConfirmation false for replayed states, which never launch the confirmation
+     */
+    private void onSessionState(SplitInstallSessionState state, boolean allowConfirmation) {
+        trace.begin(UpdateTrace.SECTION_MODULE_STATE_DISPATCH);
+        try {
+            inAppUpdateStatus.setSplitInstallSessionState(state);
+
+            trace.counter(UpdateTrace.COUNTER_MODULE_BYTES_DOWNLOADED, state.bytesDownloaded());
+
+            // Large modules need the user's confirmation before they are downloaded.
+            if (allowConfirmation && state.status() == SplitInstallSessionStatus.REQUIRES_USER_CONFIRMATION) {
+                // Only a resumed activity can host the dialog.
+                if (activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED))
+                    startConfirmationDialog(state);
+                else
+                    pendingConfirmation = state;
+            }
+
+            reportStatus();
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static boolean isActive(SplitInstallSessionState state) {
+        switch (state.status()) {
+            case SplitInstallSessionStatus.PENDING:
+            case SplitInstallSessionStatus.REQUIRES_USER_CONFIRMATION:
+            case SplitInstallSessionStatus.DOWNLOADING:
+            case SplitInstallSessionStatus.DOWNLOADED:
+            case SplitInstallSessionStatus.INSTALLING:
+            case SplitInstallSessionStatus.CANCELING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private List<String> missingModules(List<String> moduleNames) {
+        List<String> missing = new ArrayList<>();
+        for (String moduleName : moduleNames) {
+            if (!isInstalled(moduleName))
+                missing.add(moduleName);
+        }
+        return missing;
+    }
+
+    private void startInstall(List<String> moduleNames) {
+        SplitInstallRequest.Builder request = SplitInstallRequest.newBuilder();
+        for (String moduleName : moduleNames) {
+            request.addModule(moduleName);
+        }
+
+        splitInstallManager
+                .startInstall(request.build())
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        UpdateLog.e(LOG_TAG, "error in startInstall", e);
+                        reportUpdateError(Constants.UPDATE_ERROR_START_MODULE_INSTALL, e);
+                    }
+                });
+    }
+
+    private void startConfirmationDialog(SplitInstallSessionState state) {
+        if (!confirmedSessionIds.add(state.sessionId()))
+            return;
+
+        try {
+            splitInstallManager.startConfirmationDialogForResult(state, activity, requestCode);
+        } catch (IntentSender.SendIntentException e) {
+            UpdateLog.e(LOG_TAG, "error in startConfirmationDialog", e);
+            reportUpdateError(Constants.UPDATE_ERROR_START_MODULE_CONFIRMATION, e);
+        }
+    }
+
+    private void reportUpdateError(int errorCode, Throwable error) {
+        if (handler != null) {
+            long start = handlerWatchdog != null ? System.nanoTime() : 0;
+
+            handler.onInAppUpdateError(errorCode, error);
+
+            if (handlerWatchdog != null)
+                handlerWatchdog.check(handler, HandlerWatchdog.EVENT_ERROR, start);
+        }
+    }
+
+    /**
+     * Reports the status to the handler. While the activity is stopped, the updates are conflated
+     * into the latest one, which is delivered once the activity is started again.
+     */
+    private void reportStatus() {
+        if (!activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            pendingStatus = true;
+            return;
+        }
+
+        if (handler != null) {
+            long start = handlerWatchdog != null ? System.nanoTime() : 0;
+
+            handler.onInAppUpdateStatus(inAppUpdateStatus);
+
+            if (handlerWatchdog != null)
+                handlerWatchdog.check(handler, HandlerWatchdog.EVENT_STATUS, start);
+        }
+    }
+
+    //endregion
+}
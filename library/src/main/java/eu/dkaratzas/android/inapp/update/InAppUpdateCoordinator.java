@@ -0,0 +1,317 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide owner of the {@link PlayUpdateBackend}.
+ * <p>
+ * Every {@link InAppUpdateManager} attaches to the single coordinator instance, so there is
+ * exactly one Play Core listener registration and at most one {@code getAppUpdateInfo()}
+ * request in flight per process, no matter how many activities use the library. The coordinator
+ * also tracks the currently resumed activity, which is the only one allowed to show prompts
+ * or start an update flow.
+ * <p>
+ * All methods except {@link #getInstance(Context)} must be called on the main thread.
+ */
+class InAppUpdateCoordinator {
+
+    static final long CHECK_LEASE_MILLIS = 30 * 1000L;
+    static final long ANSWER_MAX_AGE_MILLIS = 60 * 1000L;
+
+    private static InAppUpdateCoordinator instance;
+
+    private final Context context;
+    private final PlayUpdateBackend playBackend;
+    private final Map<String, SelfHostedUpdateBackend> selfHostedBackends = new HashMap<>();
+    private final DownloadScheduler downloadScheduler;
+    private final UpdatePreferences preferences;
+    private final RestartFlusher restartFlusher = new RestartFlusher();
+    private final UpdateTrace trace = new UpdateTrace();
+    private final List<InAppUpdateManager> managers = new ArrayList<>();
+    private final List<InAppFeatureManager> featureManagers = new ArrayList<>();
+    private InAppUpdateManager resumedManager;
+    private UpdateSnapshot publishedSnapshot;
+    private UpdateBackend answerBackend;
+    private UpdateSnapshot answer;
+    private long answerBytesDownloaded;
+    private long answerTotalBytesToDownload;
+    private long answerElapsedRealtime;
+    private int checksInFlight = 0;
+    private boolean resumeCheckedInProcess = false;
+
+    /**
+     * Returns the process-wide coordinator, creating it on first use.
+     *
+     * @param context any context, only the application context is retained
+     * @return the coordinator instance
+     */
+    static synchronized InAppUpdateCoordinator getInstance(Context context) {
+        if (instance == null) {
+            instance = new InAppUpdateCoordinator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private InAppUpdateCoordinator(Context context) {
+        this.context = context;
+        playBackend = new PlayUpdateBackend(context);
+        downloadScheduler = new DownloadScheduler(context);
+        preferences = new UpdatePreferences(context);
+    }
+
+    UpdateBackend getPlayBackend() {
+        return playBackend;
+    }
+
+    /**
+     * Returns the self-hosted backend of the given manifest url, creating it on first use,
+     * so the activities of the process share its download.
+     *
+     * @param manifestUrl the url of the version manifest
+     * @return the backend
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    SelfHostedUpdateBackend getSelfHostedBackend(String manifestUrl) {
+        SelfHostedUpdateBackend backend = selfHostedBackends.get(manifestUrl);
+        if (backend == null) {
+            backend = new SelfHostedUpdateBackend(context, manifestUrl);
+            selfHostedBackends.put(manifestUrl, backend);
+        }
+        return backend;
+    }
+
+    DownloadScheduler getDownloadScheduler() {
+        return downloadScheduler;
+    }
+
+    UpdateTrace getTrace() {
+        return trace;
+    }
+
+    UpdatePreferences getPreferences() {
+        return preferences;
+    }
+
+    RestartFlusher getRestartFlusher() {
+        return restartFlusher;
+    }
+
+    /**
+     * Runs the flush hooks, then triggers the completion of the update, which restarts the app.
+     *
+     * @param backend  the backend of the update
+     * @param activity the activity that requested the install
+     * @param callback the callback for an error starting the install
+     */
+    void completeUpdate(final UpdateBackend backend, final Activity activity, final UpdateBackend.Callback callback) {
+        clearAnswer();
+        // The first launch of the new version measures its install-to-interactive time from here.
+        preferences.setCompleteUpdateTime(System.currentTimeMillis());
+        restartFlusher.flush(new Runnable() {
+            @Override
+            public void run() {
+                backend.completeUpdate(activity, callback);
+            }
+        });
+    }
+
+    /**
+     * Decides whether an activity resume has to query the backend for a stalled update.
+     * That is the case for the first resume of the process, or while an update flow
+     * started by the library has not reached a final state.
+     *
+     * @return true if the resume check is needed
+     */
+    boolean isResumeCheckNeeded() {
+        if (!resumeCheckedInProcess) {
+            resumeCheckedInProcess = true;
+            return true;
+        }
+
+        return preferences.isUpdateFlowInFlight();
+    }
+
+    /**
+     * Checks for an update with the given backend. Every new answer is published
+     * to the other processes through {@link SharedUpdateStatus}.
+     * <p>
+     * With {@code allowCached}, an answer of the same backend younger than {@link #ANSWER_MAX_AGE_MILLIS}
+     * is served without asking the backend, so the activities opened one after another share one request.
+     *
+     * @param backend     the backend
+     * @param allowCached true to accept a recent answer of this process
+     * @param callback    the callback for the answer
+     */
+    void checkForUpdate(final UpdateBackend backend, boolean allowCached, final UpdateBackend.Callback callback) {
+        if (allowCached && hasFreshAnswer(backend)) {
+            callback.onUpdateStatus(answer, answerBytesDownloaded, answerTotalBytesToDownload);
+            return;
+        }
+
+        checksInFlight++;
+
+        backend.checkForUpdate(new UpdateBackend.Callback() {
+            @Override
+            public void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+                onCheckFinished();
+
+                answerBackend = backend;
+                answer = snapshot;
+                answerBytesDownloaded = bytesDownloaded;
+                answerTotalBytesToDownload = totalBytesToDownload;
+                answerElapsedRealtime = SystemClock.elapsedRealtime();
+
+                // The callers of a shared request get the same snapshot, publish it once.
+                if (snapshot != publishedSnapshot) {
+                    publishedSnapshot = snapshot;
+                    SharedUpdateStatus.publish(context, snapshot);
+                }
+
+                callback.onUpdateStatus(snapshot, bytesDownloaded, totalBytesToDownload);
+            }
+
+            @Override
+            public void onUpdateError(int code, Throwable error) {
+                onCheckFinished();
+
+                callback.onUpdateError(code, error);
+            }
+        });
+    }
+
+    /**
+     * Forgets the last answer, once the install state it reports is about to change,
+     * e.g. when an update flow starts.
+     */
+    void clearAnswer() {
+        answerBackend = null;
+        answer = null;
+    }
+
+    private boolean hasFreshAnswer(UpdateBackend backend) {
+        return backend == answerBackend
+                && SystemClock.elapsedRealtime() - answerElapsedRealtime < ANSWER_MAX_AGE_MILLIS;
+    }
+
+    private void onCheckFinished() {
+        checksInFlight--;
+
+        if (checksInFlight == 0)
+            SharedUpdateStatus.releaseCheck(context);
+    }
+
+    /**
+     * Asks whether this process may run an automatic check, or another process is already checking.
+     * Joining a check that is in flight in this process, or one served by a recent answer, is always allowed.
+     *
+     * @param backend  the backend of the check
+     * @param callback the callback for the answer, true if the check may query the backend.
+     *                 Called right away, or on the main thread once the lease is read.
+     */
+    void tryAcquireCheck(UpdateBackend backend, SharedUpdateStatus.ResultCallback<Boolean> callback) {
+        if (checksInFlight > 0 || hasFreshAnswer(backend)) {
+            callback.onResult(true);
+            return;
+        }
+
+        SharedUpdateStatus.tryAcquireCheck(context, CHECK_LEASE_MILLIS, callback);
+    }
+
+    /**
+     * Finds the manager that is already wired to the given activity.
+     *
+     * @param activity the activity
+     * @return the attached manager or null
+     */
+    InAppUpdateManager findManager(Activity activity) {
+        for (InAppUpdateManager manager : managers) {
+            if (manager.getActivity() == activity)
+                return manager;
+        }
+        return null;
+    }
+
+    void attach(InAppUpdateManager manager) {
+        if (!managers.contains(manager))
+            managers.add(manager);
+    }
+
+    void detach(InAppUpdateManager manager) {
+        managers.remove(manager);
+
+        if (resumedManager == manager)
+            resumedManager = null;
+    }
+
+    /**
+     * Finds the feature manager that is already wired to the given activity.
+     *
+     * @param activity the activity
+     * @return the attached feature manager or null
+     */
+    InAppFeatureManager findFeatureManager(Activity activity) {
+        for (InAppFeatureManager manager : featureManagers) {
+            if (manager.getActivity() == activity)
+                return manager;
+        }
+        return null;
+    }
+
+    void attach(InAppFeatureManager manager) {
+        if (!featureManagers.contains(manager))
+            featureManagers.add(manager);
+    }
+
+    void detach(InAppFeatureManager manager) {
+        featureManagers.remove(manager);
+    }
+
+    void onResumed(InAppUpdateManager manager) {
+        resumedManager = manager;
+    }
+
+    void onPaused(InAppUpdateManager manager) {
+        if (resumedManager == manager)
+            resumedManager = null;
+    }
+
+    boolean isResumed(InAppUpdateManager manager) {
+        return resumedManager == manager;
+    }
+
+    /**
+     * Returns the manager whose activity should host an update flow.
+     *
+     * @param fallback the manager to use when no activity is resumed
+     * @return the resumed manager, or the fallback
+     */
+    InAppUpdateManager getFlowOwner(InAppUpdateManager fallback) {
+        return resumedManager != null ? resumedManager : fallback;
+    }
+}
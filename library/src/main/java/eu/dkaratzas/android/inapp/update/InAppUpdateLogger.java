@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+/**
+ * Receives the log messages of the library, set by {@link InAppUpdateManager#setLogger(InAppUpdateLogger)}.
+ * <p>
+ * Implement it to route the messages to the logging stack of the app, or use {@link LogcatLogger}.
+ * By default nothing is logged. Messages are only formatted for the priorities
+ * for which {@link #isLoggable(int)} returns true.
+ */
+public interface InAppUpdateLogger {
+
+    /**
+     * Checks if messages of a priority should be logged. Called before any formatting,
+     * so it should be cheap.
+     *
+     * @param priority one of the {@link android.util.Log} priorities, e.g. {@link android.util.Log#DEBUG}
+     * @return true if the messages should be logged
+     */
+    boolean isLoggable(int priority);
+
+    /**
+     * Logs a message. Only called for the priorities that are loggable.
+     *
+     * @param priority  one of the {@link android.util.Log} priorities
+     * @param tag       the tag, the name of the class that logs
+     * @param message   the formatted message
+     * @param throwable the throwable, or null
+     */
+    void log(int priority, String tag, String message, Throwable throwable);
+}
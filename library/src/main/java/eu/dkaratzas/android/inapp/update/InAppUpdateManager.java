@@ -16,8 +16,10 @@
 
 package eu.dkaratzas.android.inapp.update;
 
-import android.content.IntentSender;
-import android.util.Log;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -26,16 +28,9 @@ import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.OnLifecycleEvent;
 
 import com.google.android.material.snackbar.Snackbar;
-import com.google.android.play.core.appupdate.AppUpdateInfo;
-import com.google.android.play.core.appupdate.AppUpdateManager;
-import com.google.android.play.core.appupdate.AppUpdateManagerFactory;
-import com.google.android.play.core.install.InstallState;
-import com.google.android.play.core.install.InstallStateUpdatedListener;
 import com.google.android.play.core.install.model.AppUpdateType;
 import com.google.android.play.core.install.model.InstallStatus;
 import com.google.android.play.core.install.model.UpdateAvailability;
-import com.google.android.play.core.tasks.OnSuccessListener;
-import com.google.android.play.core.tasks.Task;
 
 import static eu.dkaratzas.android.inapp.update.Constants.UpdateMode;
 
@@ -73,52 +68,134 @@ public class InAppUpdateManager implements LifecycleObserver {
         void onInAppUpdateStatus(InAppUpdateStatus status);
     }
 
+    /**
+     * Work to run before the app is restarted to complete a flexible update,
+     * e.g. persisting in-memory caches, pending writes or analytics buffers.
+     */
+    public interface FlushHook {
+        /**
+         * Flush the state. Called on a background thread, in parallel with the other hooks.
+         *
+         * @throws Exception if the flush fails, the restart continues
+         */
+        void flush() throws Exception;
+    }
+
+    /**
+     * Callback methods where the flush hooks are reported. Called on the main thread.
+     */
+    public interface FlushListener {
+        /**
+         * On completion of a flush hook.
+         *
+         * @param name           the hook name
+         * @param durationMillis the duration of the hook
+         * @param error          the error thrown by the hook, or null
+         */
+        void onFlushHookFinished(String name, long durationMillis, Throwable error);
+
+        /**
+         * On completion of the flush, right before the app is restarted.
+         *
+         * @param durationMillis the duration of the flush
+         * @param timedOut       true if some hooks were still running at the deadline
+         */
+        void onFlushFinished(long durationMillis, boolean timedOut);
+    }
+
+    /**
+     * Callback for the handler invocations that exceed the budget set by {@link #handlerWatchdog(long, HandlerBudgetListener)}.
+     */
+    public interface HandlerBudgetListener {
+        /**
+         * On handler budget exceeded. Called on the main thread, right after the slow invocation.
+         *
+         * @param handlerClass   the class name of the handler
+         * @param event          the handler method that was invoked
+         * @param durationMillis the duration of the invocation
+         * @param budgetMillis   the budget
+         */
+        void onHandlerBudgetExceeded(String handlerClass, String event, long durationMillis, long budgetMillis);
+    }
+
     // region Declarations
     private static final String LOG_TAG = "InAppUpdateManager";
     private AppCompatActivity activity;
-    private AppUpdateManager appUpdateManager;
+    private InAppUpdateCoordinator coordinator;
+    private UpdateTrace trace;
     private int requestCode = 64534;
     private String snackBarMessage = "An update has just been downloaded.";
     private String snackBarAction = "RESTART";
     private UpdateMode mode = UpdateMode.FLEXIBLE;
+    private final UpdateUrgency urgency = new UpdateUrgency();
     private boolean resumeUpdates = true;
     private boolean useCustomNotification = false;
     private InAppUpdateHandler handler;
+    private UpdateCheckScheduler checkScheduler;
+    private HandlerWatchdog handlerWatchdog;
+    private UpdateBackend backend;
+    private PowerPolicy powerPolicy;
     private Snackbar snackbar;
+    private SharedUpdateStatus.OnChangeListener sharedStatusListener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean pendingStatus = false;
+    private boolean pendingPrompt = false;
+    private boolean deferredCheck = false;
+    private boolean deferredCheckStartsUpdate = false;
+    private boolean deferredCheckRequested = false;
     private InAppUpdateStatus inAppUpdateStatus = new InAppUpdateStatus();
 
 
-    private InstallStateUpdatedListener installStateUpdatedListener = new InstallStateUpdatedListener() {
+    private UpdateBackend.Callback backendCallback = new UpdateBackend.Callback() {
         @Override
-        public void onStateUpdate(InstallState installState) {
-            inAppUpdateStatus.setInstallState(installState);
+        public void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+            onInstallStateUpdate(snapshot, bytesDownloaded, totalBytesToDownload);
+        }
 
-            reportStatus();
+        @Override
+        public void onUpdateError(int code, Throwable error) {
+            reportUpdateError(code, error);
+        }
+    };
 
-            // Show module progress, log state, or install the update.
-            if (installState.installStatus() == InstallStatus.DOWNLOADED) {
-                // After the update is downloaded, show a notification
-                // and request user confirmation to restart the app.
-                popupSnackbarForUserConfirmation();
-            }
+    private final PowerPolicy.OnPressureReliefListener pressureReliefListener = new PowerPolicy.OnPressureReliefListener() {
+        @Override
+        public void onPressureRelief() {
+            // A paused activity runs the check on its next resume.
+            if (deferredCheck && activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED))
+                runDeferredCheck();
+        }
+    };
+
+    private final Runnable sharedStatusTimeout = new Runnable() {
+        @Override
+        public void run() {
+            UpdateLog.d(LOG_TAG, "checkForAppUpdate(): No status published before the lease expired, checking.");
+
+            stopWaitingForSharedStatus();
+            checkForUpdate(false, false);
         }
     };
     //endregion
 
     //region Constructor
-    private static InAppUpdateManager instance;
 
     /**
      * Creates a builder that uses the default requestCode.
+     * <p>
+     * Every activity gets its own manager, while the Play Core listener and update checks
+     * are shared process-wide. Calling this again for the same activity returns the
+     * manager that is already wired to it.
      *
      * @param activity the activity
-     * @return a new {@link InAppUpdateManager} instance
+     * @return the {@link InAppUpdateManager} instance of the activity
      */
     public static InAppUpdateManager Builder(AppCompatActivity activity) {
-        if (instance == null) {
-            instance = new InAppUpdateManager(activity);
+        InAppUpdateManager manager = InAppUpdateCoordinator.getInstance(activity).findManager(activity);
+        if (manager == null) {
+            manager = new InAppUpdateManager(activity);
         }
-        return instance;
+        return manager;
     }
 
     /**
@@ -126,18 +203,42 @@ public class InAppUpdateManager implements LifecycleObserver {
      *
      * @param activity    the activity
      * @param requestCode the request code to later monitor this update request via onActivityResult()
-     * @return a new {@link InAppUpdateManager} instance
+     * @return the {@link InAppUpdateManager} instance of the activity
      */
     public static InAppUpdateManager Builder(AppCompatActivity activity, int requestCode) {
-        if (instance == null) {
-            instance = new InAppUpdateManager(activity, requestCode);
+        InAppUpdateManager manager = InAppUpdateCoordinator.getInstance(activity).findManager(activity);
+        if (manager == null) {
+            manager = new InAppUpdateManager(activity, requestCode);
+        } else {
+            manager.requestCode = requestCode;
         }
-        return instance;
+        return manager;
+    }
+
+    /**
+     * Sets the logger that receives the log messages of the library, process-wide.
+     * By default nothing is logged.
+     *
+     * @param logger the logger, e.g. a {@link LogcatLogger}, or null to disable logging
+     */
+    public static void setLogger(InAppUpdateLogger logger) {
+        UpdateLog.setLogger(logger);
+    }
+
+    /**
+     * Emit {@link android.os.Trace} sections around every update stage, and the download progress
+     * as trace counters, to profile the library with Perfetto or systrace, process-wide. Default is false.
+     * <p>
+     * Set it before the first manager is created, e.g. in {@code Application.onCreate()}, to trace its init.
+     *
+     * @param enabled true to emit trace sections
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        UpdateTrace.setEnabled(enabled);
     }
 
     private InAppUpdateManager(AppCompatActivity activity) {
         this.activity = activity;
-        setupSnackbar();
 
         init();
     }
@@ -150,16 +251,34 @@ public class InAppUpdateManager implements LifecycleObserver {
     }
 
     private void init() {
-        setupSnackbar();
+        coordinator = InAppUpdateCoordinator.getInstance(activity);
+        trace = coordinator.getTrace();
+
+        trace.begin(UpdateTrace.SECTION_INIT);
+        try {
+            setupSnackbar();
 
-        appUpdateManager = AppUpdateManagerFactory.create(this.activity);
+            backend = coordinator.getPlayBackend();
+            backend.registerCallback(backendCallback);
+            coordinator.attach(this);
 
-        activity.getLifecycle().addObserver(this);
+            activity.getLifecycle().addObserver(this);
 
-        if (mode == UpdateMode.FLEXIBLE)
-            appUpdateManager.registerListener(installStateUpdatedListener);
+            PostUpdateTasks.getInstance().start(activity, coordinator.getPreferences());
 
-        checkForUpdate(false);
+            // Run the initial check once the builder calls have been applied.
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // A background refresh may have found a flexible update to start.
+                    boolean startUpdate = mode != UpdateMode.IMMEDIATE
+                            && coordinator.getPreferences().isDeferredFlexibleStart();
+                    checkForUpdate(startUpdate, false);
+                }
+            });
+        } finally {
+            trace.end();
+        }
     }
     //endregion
 
@@ -176,10 +295,64 @@ public class InAppUpdateManager implements LifecycleObserver {
         return this;
     }
 
+    /**
+     * Set when an available update is urgent. Urgent updates use the {@link UpdateMode#IMMEDIATE} flow
+     * in the {@link UpdateMode#AUTO} mode, make the next {@link #adaptiveChecks(long, long)} check run
+     * without waiting, and are checked under power pressure (see {@link #powerAware(boolean)}).
+     * Defaults are priority 4 and 30 days of staleness.
+     *
+     * @param priority      the minimum update priority (0 - 5) that is urgent
+     * @param stalenessDays the number of days since the update became available, after which it is urgent
+     * @return the update manager instance
+     */
+    public InAppUpdateManager urgentUpdateThresholds(int priority, int stalenessDays) {
+        urgency.setThresholds(priority, stalenessDays);
+        return this;
+    }
+
+    /**
+     * Hold back update checks and flexible update starts while the device is under power pressure:
+     * Battery Saver, or thermal throttling (Android 10 and higher). Checks in the
+     * {@link UpdateMode#IMMEDIATE} mode, or for an update known to be urgent
+     * (see {@link #urgentUpdateThresholds(int, int)}), still go through. A held back check is reported with
+     * {@link InAppUpdateStatus#isCheckSuppressed()}, and runs again once the pressure ends.
+     * Default is false.
+     *
+     * @param powerAware true to hold back checks under power pressure
+     * @return the update manager instance
+     */
+    public InAppUpdateManager powerAware(boolean powerAware) {
+        if (powerPolicy != null)
+            powerPolicy.stopWatching();
+
+        this.powerPolicy = powerAware ? new PowerPolicy(activity) : null;
+        return this;
+    }
+
+    /**
+     * Set the thermal status from which {@link #powerAware(boolean)} holds back checks.
+     * Default is {@link android.os.PowerManager#THERMAL_STATUS_MODERATE}.
+     * <p>
+     * Enables {@link #powerAware(boolean)} if it is not enabled yet.
+     *
+     * @param thermalStatus one of the {@code PowerManager.THERMAL_STATUS_*} values
+     * @return the update manager instance
+     */
+    public InAppUpdateManager powerAwareThermalThreshold(int thermalStatus) {
+        if (powerPolicy == null)
+            powerAware(true);
+
+        powerPolicy.setThermalThreshold(thermalStatus);
+        return this;
+    }
+
     /**
      * Checks that the update is not stalled during 'onResume()'.
      * If the update is downloaded but not installed, will notify
      * the user to complete the update.
+     * <p>
+     * Google Play is only queried on the first resume after a process start,
+     * or while an update flow started by this library is still in flight.
      *
      * @param resumeUpdates the resume updates
      * @return the update manager instance
@@ -189,6 +362,70 @@ public class InAppUpdateManager implements LifecycleObserver {
         return this;
     }
 
+    /**
+     * Adapt the interval between update checks to the answers of Google Play.
+     * <p>
+     * While no update is available, every check doubles the interval until the next one,
+     * from {@code minIntervalMillis} up to {@code maxIntervalMillis}. An available update resets
+     * the interval to the minimum, and an urgent one (see {@link #urgentUpdateThresholds(int, int)})
+     * makes the next check run without waiting. Automatic checks that are not due are skipped,
+     * and the status of the last check is reported instead. Checks requested via
+     * {@link #checkForAppUpdate()} always run.
+     *
+     * @param minIntervalMillis the minimum interval between checks
+     * @param maxIntervalMillis the maximum interval between checks
+     * @return the update manager instance
+     */
+    public InAppUpdateManager adaptiveChecks(long minIntervalMillis, long maxIntervalMillis) {
+        this.checkScheduler = new UpdateCheckScheduler(coordinator.getPreferences(), urgency, minIntervalMillis, maxIntervalMillis);
+        return this;
+    }
+
+    /**
+     * Refresh the update status periodically in the background, with JobScheduler, so that
+     * it can be reported at launch before Google Play answers. Requires Android 5.0, ignored on older versions.
+     * Calling it again with other parameters replaces the scheduled refresh.
+     *
+     * @param intervalMillis      the refresh interval, raised to 15 minutes on Android 7.0 and higher
+     * @param whileCharging       true to refresh while the device is charging, false while it is idle
+     * @param startFlexibleUpdate true to start the flexible flow at the next launch, when the refresh finds an update.
+     *                            Google Play can only start it from an activity.
+     * @return the update manager instance
+     */
+    public InAppUpdateManager backgroundPrefetch(long intervalMillis, boolean whileCharging, boolean startFlexibleUpdate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            UpdatePrefetchJobService.schedule(activity, intervalMillis, whileCharging, startFlexibleUpdate);
+        return this;
+    }
+
+    /**
+     * Cancel the background refresh set by {@link #backgroundPrefetch(long, boolean, boolean)}.
+     *
+     * @return the update manager instance
+     */
+    public InAppUpdateManager cancelBackgroundPrefetch() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            UpdatePrefetchJobService.cancel(activity);
+        return this;
+    }
+
+    /**
+     * Use a source of updates other than Google Play, e.g. a {@link SelfHostedUpdateBackend}
+     * for builds that are not distributed through Google Play. Default is Google Play.
+     * <p>
+     * Checks, update flows, the adaptive cadence and the shared status work the same for every backend.
+     *
+     * @param backend the backend, or null for Google Play
+     * @return the update manager instance
+     */
+    public InAppUpdateManager backend(UpdateBackend backend) {
+        this.backend.unregisterCallback(backendCallback);
+
+        this.backend = backend != null ? backend : coordinator.getPlayBackend();
+        this.backend.registerCallback(backendCallback);
+        return this;
+    }
+
     /**
      * Set the callback handler
      *
@@ -200,6 +437,81 @@ public class InAppUpdateManager implements LifecycleObserver {
         return this;
     }
 
+    /**
+     * Time every {@link InAppUpdateHandler} invocation against a main thread budget,
+     * e.g. 16ms for one frame, and report the invocations that exceed it.
+     *
+     * @param budgetMillis the budget of a handler invocation
+     * @param listener     the listener for the invocations that exceed the budget
+     * @return the update manager instance
+     */
+    public InAppUpdateManager handlerWatchdog(long budgetMillis, HandlerBudgetListener listener) {
+        this.handlerWatchdog = new HandlerWatchdog(activity, budgetMillis, listener);
+        return this;
+    }
+
+    /**
+     * Throw an {@link IllegalStateException} when a handler invocation exceeds the
+     * {@link #handlerWatchdog(long, HandlerBudgetListener)} budget, like StrictMode's penaltyDeath().
+     * Only applies to debuggable builds. Default is false.
+     *
+     * @param failFast true to throw
+     * @return the update manager instance
+     */
+    public InAppUpdateManager handlerWatchdogFailFast(boolean failFast) {
+        if (handlerWatchdog == null)
+            throw new IllegalStateException("handlerWatchdog() must be set first");
+
+        handlerWatchdog.setFailFast(failFast);
+        return this;
+    }
+
+    /**
+     * Add a hook that runs before the app is restarted to complete a flexible update.
+     * Hooks are process-wide and run in parallel, see {@link #flushDeadline(long)}.
+     *
+     * @param name the hook name, a hook with the same name is replaced
+     * @param hook the hook
+     * @return the update manager instance
+     */
+    public InAppUpdateManager addFlushHook(String name, FlushHook hook) {
+        coordinator.getRestartFlusher().addHook(name, hook);
+        return this;
+    }
+
+    /**
+     * Remove a hook added by {@link #addFlushHook(String, FlushHook)}.
+     *
+     * @param name the hook name
+     * @return the update manager instance
+     */
+    public InAppUpdateManager removeFlushHook(String name) {
+        coordinator.getRestartFlusher().removeHook(name);
+        return this;
+    }
+
+    /**
+     * Set the longest time the restart waits for the flush hooks. Default is 2 seconds.
+     *
+     * @param deadlineMillis the deadline
+     * @return the update manager instance
+     */
+    public InAppUpdateManager flushDeadline(long deadlineMillis) {
+        coordinator.getRestartFlusher().setDeadline(deadlineMillis);
+        return this;
+    }
+
+    /**
+     * Set the listener for the duration of the flush hooks.
+     *
+     * @param listener the listener
+     * @return the update manager instance
+     */
+    public InAppUpdateManager flushListener(FlushListener listener) {
+        coordinator.getRestartFlusher().setListener(listener);
+        return this;
+    }
+
     /**
      * Use custom notification for the user confirmation needed by the {@link UpdateMode#FLEXIBLE} flow.
      * If this will set to true, need to implement the {@link InAppUpdateHandler} and listen for the {@link InAppUpdateStatus#isDownloaded()} status
@@ -236,16 +548,47 @@ public class InAppUpdateManager implements LifecycleObserver {
     //endregion
 
     //region Lifecycle
+    @OnLifecycleEvent(Lifecycle.Event.ON_START)
+    public void onStart() {
+        // Deliver the latest status that was held back while the activity was stopped.
+        if (pendingStatus) {
+            pendingStatus = false;
+            reportStatus();
+        }
+    }
+
     @OnLifecycleEvent(Lifecycle.Event.ON_RESUME)
     public void onResume() {
-        if (resumeUpdates)
+        coordinator.onResumed(this);
+
+        if (pendingPrompt) {
+            pendingPrompt = false;
+
+            // The update may have been installed, or have failed, while the prompt was held back.
+            if (inAppUpdateStatus.isDownloaded())
+                popupSnackbarForUserConfirmation();
+        }
+
+        if (deferredCheck)
+            runDeferredCheck();
+
+        if (resumeUpdates && coordinator.isResumeCheckNeeded())
             checkNewAppVersionState();
     }
 
+    @OnLifecycleEvent(Lifecycle.Event.ON_PAUSE)
+    public void onPause() {
+        coordinator.onPaused(this);
+    }
+
 
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     public void onDestroy() {
         unregisterListener();
+        stopWaitingForSharedStatus();
+
+        if (powerPolicy != null)
+            powerPolicy.stopWatching();
     }
     //endregion
 
@@ -256,86 +599,282 @@ public class InAppUpdateManager implements LifecycleObserver {
      * will start the update process with the selected {@link UpdateMode}.
      */
     public void checkForAppUpdate() {
-        checkForUpdate(true);
+        checkForUpdate(true, true);
     }
 
     /**
-     * Triggers the completion of the app update for the flexible flow.
+     * Triggers the completion of the app update for the flexible flow,
+     * once the flush hooks have run.
      */
     public void completeUpdate() {
-        appUpdateManager.completeUpdate();
+        coordinator.completeUpdate(backend, activity, backendCallback);
+    }
+    //endregion
+
+    //region Package Methods
+
+    AppCompatActivity getActivity() {
+        return activity;
     }
+
     //endregion
 
     //region Private Methods
 
+    /**
+     * Called by the backend for every install state update of the running update.
+     */
+    private void onInstallStateUpdate(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+        trace.begin(UpdateTrace.SECTION_INSTALL_STATE_DISPATCH);
+        try {
+            inAppUpdateStatus.setBackendStatus(snapshot, bytesDownloaded, totalBytesToDownload);
+
+            int installStatus = snapshot.installStatus();
+            coordinator.getDownloadScheduler().setAppUpdateDownloading(installStatus == InstallStatus.PENDING
+                    || installStatus == InstallStatus.DOWNLOADING);
+
+            if (installStatus == InstallStatus.INSTALLED
+                    || installStatus == InstallStatus.FAILED
+                    || installStatus == InstallStatus.CANCELED) {
+                coordinator.getPreferences().setUpdateFlowInFlight(false);
+            }
+
+            trace.counter(UpdateTrace.COUNTER_BYTES_DOWNLOADED, bytesDownloaded);
+            trace.counter(UpdateTrace.COUNTER_TOTAL_BYTES, totalBytesToDownload);
+
+            reportStatus();
+
+            // Show module progress, log state, or install the update.
+            if (installStatus == InstallStatus.DOWNLOADED) {
+                // After the update is downloaded, show a notification
+                // and request user confirmation to restart the app.
+                popupSnackbarForUserConfirmation();
+            }
+        } finally {
+            trace.end();
+        }
+    }
+
     /**
      * Check for update availability. If there will be an update available
      * will start the update process with the selected {@link UpdateMode}.
+     *
+     * @param startUpdate true to start the update flow for an available update
+     * @param requested   true if the app requested the check, false for the automatic checks of the library
      */
-    private void checkForUpdate(final boolean startUpdate) {
+    private void checkForUpdate(final boolean startUpdate, final boolean requested) {
+        if (inAppUpdateStatus.hasUpdateStatus()) {
+            checkForUpdate(startUpdate, requested, false);
+            return;
+        }
 
-        // Returns an intent object that you use to check for an update.
-        Task<AppUpdateInfo> appUpdateInfoTask = appUpdateManager.getAppUpdateInfo();
+        // Until the backend answers, the status of an earlier check stands in. The file is read off the main thread.
+        SharedUpdateStatus.read(activity, new SharedUpdateStatus.ResultCallback<UpdateSnapshot>() {
+            @Override
+            public void onResult(UpdateSnapshot snapshot) {
+                if (isDestroyed())
+                    return;
 
+                checkForUpdate(startUpdate, requested, loadStoredStatus(snapshot));
+            }
+        });
+    }
 
-        // Checks that the platform will allow the specified type of update.
-        appUpdateInfoTask.addOnSuccessListener(new OnSuccessListener<AppUpdateInfo>() {
-            @Override
-            public void onSuccess(AppUpdateInfo appUpdateInfo) {
-                inAppUpdateStatus.setAppUpdateInfo(appUpdateInfo);
-
-                if (startUpdate) {
-                    if (appUpdateInfo.updateAvailability() == UpdateAvailability.UPDATE_AVAILABLE) {
-                        // Request the update.
-                        if (mode == UpdateMode.FLEXIBLE && appUpdateInfo.isUpdateTypeAllowed(AppUpdateType.FLEXIBLE)) {
-                            // Start an update.
-                            startAppUpdateFlexible(appUpdateInfo);
-                        } else if (appUpdateInfo.isUpdateTypeAllowed(AppUpdateType.IMMEDIATE)) {
-                            // Start an update.
-                            startAppUpdateImmediate(appUpdateInfo);
-                        }
-
-                        Log.d(LOG_TAG, "checkForAppUpdate(): Update available. Version Code: " + appUpdateInfo.availableVersionCode());
-                    } else if (appUpdateInfo.updateAvailability() == UpdateAvailability.UPDATE_NOT_AVAILABLE) {
-                        Log.d(LOG_TAG, "checkForAppUpdate(): No Update available. Code: " + appUpdateInfo.updateAvailability());
-                    }
-                }
+    private void checkForUpdate(final boolean startUpdate, final boolean requested, boolean storedStatusLoaded) {
+        if (isSuppressedByPowerPolicy(startUpdate, requested))
+            return;
+
+        // The cadence only paces the automatic checks.
+        if (!requested && checkScheduler != null && !checkScheduler.isCheckDue()) {
+            UpdateLog.d(LOG_TAG, "checkForAppUpdate(): Skipped, next check is not due yet.");
 
+            if (inAppUpdateStatus.hasUpdateStatus())
                 reportStatus();
+            return;
+        }
+
+        if (storedStatusLoaded)
+            reportStatus();
+
+        if (startUpdate) {
+            queryForUpdate(true, requested);
+            return;
+        }
+
+        // Automatic checks leave the query to another process that is already checking.
+        coordinator.tryAcquireCheck(backend, new SharedUpdateStatus.ResultCallback<Boolean>() {
+            @Override
+            public void onResult(Boolean granted) {
+                if (granted) {
+                    queryForUpdate(false, requested);
+                } else if (!isDestroyed()) {
+                    UpdateLog.d(LOG_TAG, "checkForAppUpdate(): Another process is checking, waiting for its result.");
+                    waitForSharedStatus();
+                }
             }
         });
-
     }
 
-    private void startAppUpdateImmediate(AppUpdateInfo appUpdateInfo) {
+    private void queryForUpdate(final boolean startUpdate, boolean requested) {
+        trace.begin(UpdateTrace.SECTION_CHECK_FOR_UPDATE);
         try {
-            appUpdateManager.startUpdateFlowForResult(
-                    appUpdateInfo,
-                    AppUpdateType.IMMEDIATE,
-                    // The current activity making the update request.
-                    activity,
-                    // Include a request code to later monitor this update request.
-                    requestCode);
-        } catch (IntentSender.SendIntentException e) {
-            Log.e(LOG_TAG, "error in startAppUpdateImmediate", e);
-            reportUpdateError(Constants.UPDATE_ERROR_START_APP_UPDATE_IMMEDIATE, e);
+            // Checks that the platform will allow the specified type of update.
+            // The automatic checks of the activities opened one after another share one answer.
+            coordinator.checkForUpdate(backend, !requested, new UpdateBackend.Callback() {
+                @Override
+                public void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+                    onCheckForUpdateResult(snapshot, bytesDownloaded, totalBytesToDownload, startUpdate);
+                }
+
+                @Override
+                public void onUpdateError(int code, Throwable error) {
+                    reportUpdateError(code, error);
+                }
+            });
+        } finally {
+            trace.end();
         }
     }
 
-    private void startAppUpdateFlexible(AppUpdateInfo appUpdateInfo) {
+    private void onCheckForUpdateResult(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload, boolean startUpdate) {
+        trace.begin(UpdateTrace.SECTION_CHECK_FOR_UPDATE_RESULT);
         try {
-            appUpdateManager.startUpdateFlowForResult(
-                    appUpdateInfo,
-                    AppUpdateType.FLEXIBLE,
-                    // The current activity making the update request.
-                    activity,
-                    // Include a request code to later monitor this update request.
-                    requestCode);
-        } catch (IntentSender.SendIntentException e) {
-            Log.e(LOG_TAG, "error in startAppUpdateFlexible", e);
-            reportUpdateError(Constants.UPDATE_ERROR_START_APP_UPDATE_FLEXIBLE, e);
+            inAppUpdateStatus.setBackendStatus(snapshot, bytesDownloaded, totalBytesToDownload);
+            inAppUpdateStatus.setSuppressedReason(Constants.SUPPRESSED_NONE);
+
+            if (checkScheduler != null)
+                checkScheduler.onCheckResult(snapshot);
+
+            boolean flowStarted = startUpdate && escalateRunningFlexibleUpdate(snapshot);
+            if (startUpdate && !flowStarted) {
+                if (snapshot.updateAvailability() == UpdateAvailability.UPDATE_AVAILABLE) {
+                    // Request the update.
+                    if (resolveMode(snapshot) == UpdateMode.FLEXIBLE && snapshot.isUpdateTypeAllowed(AppUpdateType.FLEXIBLE)) {
+                        // Start an update.
+                        flowStarted = startUpdateFlow(AppUpdateType.FLEXIBLE);
+                    } else if (snapshot.isUpdateTypeAllowed(AppUpdateType.IMMEDIATE)) {
+                        // Start an update.
+                        flowStarted = startUpdateFlow(AppUpdateType.IMMEDIATE);
+                    }
+
+                    UpdateLog.d(LOG_TAG, "checkForAppUpdate(): Update available. Version Code: {}", snapshot.availableVersionCode());
+                } else if (snapshot.updateAvailability() == UpdateAvailability.UPDATE_NOT_AVAILABLE) {
+                    UpdateLog.d(LOG_TAG, "checkForAppUpdate(): No Update available. Code: {}", snapshot.updateAvailability());
+                }
+            }
+
+            // A start deferred by the background refresh waits for a flow, or for the update to go away.
+            if (flowStarted || snapshot.updateAvailability() == UpdateAvailability.UPDATE_NOT_AVAILABLE)
+                coordinator.getPreferences().setDeferredFlexibleStart(false);
+
+            reportStatus();
+        } finally {
+            trace.end();
+        }
+    }
+
+    /**
+     * Holds back the check while the device is under power pressure, unless it is essential.
+     * The check runs again once the pressure ends, or on the next resume.
+     *
+     * @return true if the check was held back
+     */
+    private boolean isSuppressedByPowerPolicy(boolean startUpdate, boolean requested) {
+        if (powerPolicy == null
+                || mode == UpdateMode.IMMEDIATE
+                || urgency.isUrgent(inAppUpdateStatus.updatePriority(), inAppUpdateStatus.clientVersionStalenessDays()))
+            return false;
+
+        int reason = powerPolicy.suppressionReason();
+        if (reason == Constants.SUPPRESSED_NONE)
+            return false;
+
+        UpdateLog.d(LOG_TAG, "checkForAppUpdate(): Suppressed by the power policy. Reason: {}", reason);
+
+        deferredCheck = true;
+        deferredCheckStartsUpdate |= startUpdate;
+        deferredCheckRequested |= requested;
+        powerPolicy.watchForRelief(pressureReliefListener);
+
+        inAppUpdateStatus.setSuppressedReason(reason);
+        reportStatus();
+        return true;
+    }
+
+    /**
+     * Runs the check held back by the power policy.
+     */
+    private void runDeferredCheck() {
+        boolean startUpdate = deferredCheckStartsUpdate;
+        boolean requested = deferredCheckRequested;
+        deferredCheck = false;
+        deferredCheckStartsUpdate = false;
+        deferredCheckRequested = false;
+
+        if (powerPolicy != null)
+            powerPolicy.stopWatching();
+
+        checkForUpdate(startUpdate, requested);
+    }
+
+    /**
+     * Resolves the flow of an update. The {@link UpdateMode#AUTO} mode picks the immediate flow
+     * for high priority or stale updates, and the flexible flow for the rest.
+     */
+    private UpdateMode resolveMode(UpdateSnapshot snapshot) {
+        if (mode != UpdateMode.AUTO)
+            return mode;
+
+        return urgency.isUrgent(snapshot) ? UpdateMode.IMMEDIATE : UpdateMode.FLEXIBLE;
+    }
+
+    /**
+     * In {@link UpdateMode#AUTO} mode, upgrades a running flexible update that became critical:
+     * a download in progress continues in the immediate flow. A finished one is never installed
+     * without the user, the immediate flow or the restart prompt asks first.
+     *
+     * @return true if the update was escalated
+     */
+    private boolean escalateRunningFlexibleUpdate(UpdateSnapshot snapshot) {
+        if (mode != UpdateMode.AUTO || !urgency.isUrgent(snapshot))
+            return false;
+
+        int installStatus = snapshot.installStatus();
+        if (installStatus == InstallStatus.DOWNLOADED) {
+            UpdateLog.d(LOG_TAG, "escalateRunningFlexibleUpdate(): asking to install downloaded update. Priority: {}", snapshot.updatePriority());
+
+            if (!snapshot.isUpdateTypeAllowed(AppUpdateType.IMMEDIATE) || !startUpdateFlow(AppUpdateType.IMMEDIATE))
+                popupSnackbarForUserConfirmation();
+            return true;
         }
+
+        if ((installStatus == InstallStatus.PENDING || installStatus == InstallStatus.DOWNLOADING)
+                && snapshot.isUpdateTypeAllowed(AppUpdateType.IMMEDIATE)) {
+            UpdateLog.d(LOG_TAG, "escalateRunningFlexibleUpdate(): continuing download in the immediate flow. Priority: {}", snapshot.updatePriority());
+            // Google Play resumes the running download instead of starting a new one.
+            startUpdateFlow(AppUpdateType.IMMEDIATE);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Starts the update flow in the resumed activity, and marks it in flight until it reaches a final state.
+     *
+     * @param updateType the {@link AppUpdateType}
+     * @return true if the flow was started
+     */
+    private boolean startUpdateFlow(int updateType) {
+        // Only the resumed activity can host the flow and receive its result.
+        InAppUpdateManager owner = coordinator.getFlowOwner(this);
+        coordinator.clearAnswer();
+
+        if (!backend.startUpdate(owner.activity, updateType, owner.requestCode, backendCallback))
+            return false;
+
+        coordinator.getPreferences().setUpdateFlowInFlight(true);
+        return true;
     }
 
     /**
@@ -343,13 +882,20 @@ public class InAppUpdateManager implements LifecycleObserver {
      * Needed only for Flexible app update
      */
     private void popupSnackbarForUserConfirmation() {
-        if (!useCustomNotification) {
-            if (snackbar != null && snackbar.isShownOrQueued())
-                snackbar.dismiss();
-
+        if (useCustomNotification)
+            return;
 
-            snackbar.show();
+        // Only the resumed activity prompts, the others will do so when they resume.
+        if (!coordinator.isResumed(this)) {
+            pendingPrompt = true;
+            return;
         }
+
+        if (snackbar != null && snackbar.isShownOrQueued())
+            snackbar.dismiss();
+
+
+        snackbar.show();
     }
 
     /**
@@ -357,67 +903,201 @@ public class InAppUpdateManager implements LifecycleObserver {
      * However, you should execute this check at all app entry points.
      */
     private void checkNewAppVersionState() {
+        trace.begin(UpdateTrace.SECTION_CHECK_NEW_APP_VERSION_STATE);
+        try {
+            coordinator.checkForUpdate(backend, false, new UpdateBackend.Callback() {
+                @Override
+                public void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+                    onNewAppVersionState(snapshot, bytesDownloaded, totalBytesToDownload);
+                }
 
-        appUpdateManager
-                .getAppUpdateInfo()
-                .addOnSuccessListener(new OnSuccessListener<AppUpdateInfo>() {
-                    @Override
-                    public void onSuccess(AppUpdateInfo appUpdateInfo) {
+                @Override
+                public void onUpdateError(int code, Throwable error) {
+                    // Only logged by the backend, the resume check was not requested by the app.
+                }
+            });
+        } finally {
+            trace.end();
+        }
+    }
 
-                        inAppUpdateStatus.setAppUpdateInfo(appUpdateInfo);
+    private void onNewAppVersionState(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+        trace.begin(UpdateTrace.SECTION_CHECK_NEW_APP_VERSION_STATE_RESULT);
+        try {
+            inAppUpdateStatus.setBackendStatus(snapshot, bytesDownloaded, totalBytesToDownload);
+            inAppUpdateStatus.setSuppressedReason(Constants.SUPPRESSED_NONE);
 
-                        //FLEXIBLE:
-                        // If the update is downloaded but not installed,
-                        // notify the user to complete the update.
-                        if (appUpdateInfo.installStatus() == InstallStatus.DOWNLOADED) {
-                            popupSnackbarForUserConfirmation();
-                            reportStatus();
-                            Log.d(LOG_TAG, "checkNewAppVersionState(): resuming flexible update. Code: " + appUpdateInfo.updateAvailability());
-                        }
+            if (escalateRunningFlexibleUpdate(snapshot)) {
+                reportStatus();
+                return;
+            }
 
-                        //IMMEDIATE:
-                        if (appUpdateInfo.updateAvailability() == UpdateAvailability.DEVELOPER_TRIGGERED_UPDATE_IN_PROGRESS) {
-                            // If an in-app update is already running, resume the update.
-                            startAppUpdateImmediate(appUpdateInfo);
+            //FLEXIBLE:
+            // If the update is downloaded but not installed,
+            // notify the user to complete the update.
+            if (snapshot.installStatus() == InstallStatus.DOWNLOADED) {
+                popupSnackbarForUserConfirmation();
+                reportStatus();
+                UpdateLog.d(LOG_TAG, "checkNewAppVersionState(): resuming flexible update. Code: {}", snapshot.updateAvailability());
+            }
 
-                            Log.d(LOG_TAG, "checkNewAppVersionState(): resuming immediate update. Code: " + appUpdateInfo.updateAvailability());
+            //IMMEDIATE:
+            if (snapshot.updateAvailability() == UpdateAvailability.DEVELOPER_TRIGGERED_UPDATE_IN_PROGRESS) {
+                // If an in-app update is already running, resume the update.
+                startUpdateFlow(AppUpdateType.IMMEDIATE);
 
-                        }
-                    }
-                });
+                UpdateLog.d(LOG_TAG, "checkNewAppVersionState(): resuming immediate update. Code: {}", snapshot.updateAvailability());
+
+            }
 
+            // Nothing is pending, e.g. the user declined the flow, stop checking on every resume.
+            if (!isUpdateInProgress(snapshot))
+                coordinator.getPreferences().setUpdateFlowInFlight(false);
+        } finally {
+            trace.end();
+        }
     }
 
-    private void setupSnackbar() {
-        View rootView = activity.getWindow().getDecorView().findViewById(android.R.id.content);
+    /**
+     * Loads the last stored status, if this manager has no status yet. A snapshot older than
+     * the background refresh interval, or one of an update that is already installed, is dropped.
+     *
+     * @param snapshot the stored status, or null if no process has checked yet
+     * @return true if a stored status was loaded
+     */
+    private boolean loadStoredStatus(UpdateSnapshot snapshot) {
+        if (snapshot == null || inAppUpdateStatus.hasUpdateStatus())
+            return false;
+
+        long maxAge = coordinator.getPreferences().getPrefetchInterval();
+        if (maxAge == 0)
+            maxAge = UpdateCheckScheduler.DEFAULT_MAX_INTERVAL;
+
+        try {
+            if (snapshot.isStale(AppVersion.installedVersionCode(activity), maxAge)) {
+                UpdateLog.d(LOG_TAG, "loadStoredStatus(): Dropped stale snapshot. Version Code: {}", snapshot.availableVersionCode());
+                return false;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            UpdateLog.e(LOG_TAG, "error in loadStoredStatus", e);
+            return false;
+        }
+
+        inAppUpdateStatus.setUpdateSnapshot(snapshot);
+        return true;
+    }
 
-        snackbar = Snackbar.make(rootView,
-                snackBarMessage,
-                Snackbar.LENGTH_INDEFINITE);
+    /**
+     * Reports the status published by the process that holds the check, once it arrives.
+     * If nothing is published before the lease expires, e.g. the check of that process failed
+     * or the process died, this process checks on its own.
+     */
+    private void waitForSharedStatus() {
+        if (sharedStatusListener != null)
+            return;
 
-        snackbar.setAction(snackBarAction, new View.OnClickListener() {
+        sharedStatusListener = new SharedUpdateStatus.OnChangeListener() {
             @Override
-            public void onClick(View view) {
-                // Triggers the completion of the update of the app for the flexible flow.
-                appUpdateManager.completeUpdate();
+            public void onSharedUpdateStatusChanged(UpdateSnapshot snapshot) {
+                stopWaitingForSharedStatus();
+
+                if (snapshot != null) {
+                    inAppUpdateStatus.setUpdateSnapshot(snapshot);
+                    reportStatus();
+                }
             }
-        });
+        };
+        SharedUpdateStatus.registerListener(activity, sharedStatusListener);
+        mainHandler.postDelayed(sharedStatusTimeout, InAppUpdateCoordinator.CHECK_LEASE_MILLIS);
+    }
+
+    private boolean isDestroyed() {
+        return activity.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED;
+    }
+
+    private void stopWaitingForSharedStatus() {
+        mainHandler.removeCallbacks(sharedStatusTimeout);
+
+        if (sharedStatusListener != null) {
+            SharedUpdateStatus.unregisterListener(sharedStatusListener);
+            sharedStatusListener = null;
+        }
+    }
+
+    private boolean isUpdateInProgress(UpdateSnapshot snapshot) {
+        int installStatus = snapshot.installStatus();
+        return snapshot.updateAvailability() == UpdateAvailability.DEVELOPER_TRIGGERED_UPDATE_IN_PROGRESS
+                || installStatus == InstallStatus.PENDING
+                || installStatus == InstallStatus.DOWNLOADING
+                || installStatus == InstallStatus.DOWNLOADED
+                || installStatus == InstallStatus.INSTALLING;
+    }
+
+    private void setupSnackbar() {
+        trace.begin(UpdateTrace.SECTION_SETUP_SNACKBAR);
+        try {
+            View rootView = activity.getWindow().getDecorView().findViewById(android.R.id.content);
+
+            snackbar = Snackbar.make(rootView,
+                    snackBarMessage,
+                    Snackbar.LENGTH_INDEFINITE);
+
+            snackbar.setAction(snackBarAction, new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    // Triggers the completion of the update of the app for the flexible flow.
+                    completeUpdate();
+                }
+            });
+        } finally {
+            trace.end();
+        }
     }
 
     private void unregisterListener() {
-        if (appUpdateManager != null && installStateUpdatedListener != null)
-            appUpdateManager.unregisterListener(installStateUpdatedListener);
+        activity.getLifecycle().removeObserver(this);
+        backend.unregisterCallback(backendCallback);
+        coordinator.detach(this);
     }
 
     private void reportUpdateError(int errorCode, Throwable error) {
         if (handler != null) {
-            handler.onInAppUpdateError(errorCode, error);
+            trace.begin(UpdateTrace.SECTION_REPORT_ERROR);
+            try {
+                long start = handlerWatchdog != null ? System.nanoTime() : 0;
+
+                handler.onInAppUpdateError(errorCode, error);
+
+                if (handlerWatchdog != null)
+                    handlerWatchdog.check(handler, HandlerWatchdog.EVENT_ERROR, start);
+            } finally {
+                trace.end();
+            }
         }
     }
 
+    /**
+     * Reports the status to the handler. While the activity is stopped, the updates are conflated
+     * into the latest one, which is delivered once the activity is started again.
+     */
     private void reportStatus() {
+        if (!activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            pendingStatus = true;
+            return;
+        }
+
         if (handler != null) {
-            handler.onInAppUpdateStatus(inAppUpdateStatus);
+            trace.begin(UpdateTrace.SECTION_REPORT_STATUS);
+            try {
+                long start = handlerWatchdog != null ? System.nanoTime() : 0;
+
+                handler.onInAppUpdateStatus(inAppUpdateStatus);
+
+                if (handlerWatchdog != null)
+                    handlerWatchdog.check(handler, HandlerWatchdog.EVENT_STATUS, start);
+            } finally {
+                trace.end();
+            }
         }
     }
 
@@ -4,32 +4,145 @@ import com.google.android.play.core.appupdate.AppUpdateInfo;
 import com.google.android.play.core.install.InstallState;
 import com.google.android.play.core.install.model.InstallStatus;
 import com.google.android.play.core.install.model.UpdateAvailability;
+import com.google.android.play.core.splitinstall.SplitInstallSessionState;
+import com.google.android.play.core.splitinstall.model.SplitInstallSessionStatus;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
- * This class is just a wrapper for AppUpdateInfo and InstallState
- * Used by InAppUpdateManager
+ * This class is just a wrapper for AppUpdateInfo and InstallState,
+ * or SplitInstallSessionState for dynamic feature module installs.
+ * The answers of an {@link UpdateBackend} are wrapped as an {@link UpdateSnapshot}, and until the backend
+ * answers, the snapshot of an earlier check can stand in for them.
+ * Used by InAppUpdateManager and InAppFeatureManager
  */
 public class InAppUpdateStatus {
 
     private static final int NO_UPDATE = 0;
     private AppUpdateInfo appUpdateInfo;
     private InstallState installState;
+    private SplitInstallSessionState splitInstallSessionState;
+    private UpdateSnapshot updateSnapshot;
+    private long bytesDownloaded = 0;
+    private long totalBytesToDownload = 0;
+    private int suppressedReason = Constants.SUPPRESSED_NONE;
+    private boolean fromEarlierCheck = false;
 
     public InAppUpdateStatus() {
     }
 
     public void setAppUpdateInfo(AppUpdateInfo appUpdateInfo) {
         this.appUpdateInfo = appUpdateInfo;
+        this.updateSnapshot = null;
+        this.fromEarlierCheck = false;
+        this.suppressedReason = Constants.SUPPRESSED_NONE;
+    }
+
+    /**
+     * Set the result of a check that was made elsewhere, e.g. by another process.
+     * Replaces the AppUpdateInfo until a new one is set.
+     *
+     * @param updateSnapshot the snapshot
+     */
+    public void setUpdateSnapshot(UpdateSnapshot updateSnapshot) {
+        this.updateSnapshot = updateSnapshot;
+        this.appUpdateInfo = null;
+        this.installState = null;
+        this.fromEarlierCheck = true;
+        this.suppressedReason = Constants.SUPPRESSED_NONE;
+    }
+
+    /**
+     * Set a status reported by the {@link UpdateBackend} to this process:
+     * the answer of a check, or an install state update of the running update.
+     *
+     * @param updateSnapshot       the update and install state
+     * @param bytesDownloaded      the downloaded bytes
+     * @param totalBytesToDownload the total bytes
+     */
+    void setBackendStatus(UpdateSnapshot updateSnapshot, long bytesDownloaded, long totalBytesToDownload) {
+        this.updateSnapshot = updateSnapshot;
+        this.appUpdateInfo = null;
+        this.installState = null;
+        this.fromEarlierCheck = false;
+        this.bytesDownloaded = bytesDownloaded;
+        this.totalBytesToDownload = totalBytesToDownload;
+    }
+
+    /**
+     * @return true if an update status is set, from a check of this process or an earlier one
+     */
+    boolean hasUpdateStatus() {
+        return appUpdateInfo != null || updateSnapshot != null;
+    }
+
+    /**
+     * Set the reason the last check was held back, see {@link #isCheckSuppressed()}.
+     *
+     * @param suppressedReason one of the {@code Constants.SUPPRESSED_*} reasons
+     */
+    public void setSuppressedReason(int suppressedReason) {
+        this.suppressedReason = suppressedReason;
+    }
+
+    /**
+     * @return true if the last check was held back by the power policy, the status is from an earlier check
+     */
+    public boolean isCheckSuppressed() {
+        return suppressedReason != Constants.SUPPRESSED_NONE;
+    }
+
+    /**
+     * @return one of the {@code Constants.SUPPRESSED_*} reasons
+     */
+    public int suppressedReason() {
+        return suppressedReason;
+    }
+
+    /**
+     * @return true if the status is served from an earlier check, e.g. stored or published by another process,
+     * instead of an answer of the backend to this process
+     */
+    public boolean isFromEarlierCheck() {
+        return fromEarlierCheck;
     }
 
     public void setInstallState(InstallState installState) {
         this.installState = installState;
     }
 
+    public void setSplitInstallSessionState(SplitInstallSessionState splitInstallSessionState) {
+        this.splitInstallSessionState = splitInstallSessionState;
+    }
+
+    /**
+     * @return true if this status reports a dynamic feature module install instead of an app update
+     */
+    public boolean isModuleInstall() {
+        return splitInstallSessionState != null;
+    }
+
+    /**
+     * @return the modules of the reported module install, or an empty list for app updates
+     */
+    public List<String> moduleNames() {
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.moduleNames();
+
+        return Collections.emptyList();
+    }
+
     public boolean isDownloading() {
         if (installState != null)
             return installState.installStatus() == InstallStatus.DOWNLOADING;
 
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.status() == SplitInstallSessionStatus.DOWNLOADING;
+
+        if (updateSnapshot != null)
+            return updateSnapshot.installStatus() == InstallStatus.DOWNLOADING;
+
         return false;
     }
 
@@ -37,6 +150,22 @@ public class InAppUpdateStatus {
         if (installState != null)
             return installState.installStatus() == InstallStatus.DOWNLOADED;
 
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.status() == SplitInstallSessionStatus.DOWNLOADED;
+
+        if (updateSnapshot != null)
+            return updateSnapshot.installStatus() == InstallStatus.DOWNLOADED;
+
+        return false;
+    }
+
+    /**
+     * @return true if the reported module install has finished. App updates restart the app instead.
+     */
+    public boolean isInstalled() {
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.status() == SplitInstallSessionStatus.INSTALLED;
+
         return false;
     }
 
@@ -44,20 +173,80 @@ public class InAppUpdateStatus {
         if (installState != null)
             return installState.installStatus() == InstallStatus.FAILED;
 
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.status() == SplitInstallSessionStatus.FAILED;
+
+        if (updateSnapshot != null)
+            return updateSnapshot.installStatus() == InstallStatus.FAILED;
+
         return false;
     }
 
+    public long bytesDownloaded() {
+        if (installState != null)
+            return installState.bytesDownloaded();
+
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.bytesDownloaded();
+
+        return bytesDownloaded;
+    }
+
+    public long totalBytesToDownload() {
+        if (installState != null)
+            return installState.totalBytesToDownload();
+
+        if (splitInstallSessionState != null)
+            return splitInstallSessionState.totalBytesToDownload();
+
+        return totalBytesToDownload;
+    }
+
     public boolean isUpdateAvailable() {
         if (appUpdateInfo != null)
             return appUpdateInfo.updateAvailability() == UpdateAvailability.UPDATE_AVAILABLE;
 
+        if (updateSnapshot != null)
+            return updateSnapshot.updateAvailability() == UpdateAvailability.UPDATE_AVAILABLE;
+
         return false;
     }
 
+    /**
+     * @return the priority of the available update, or 0 if unknown
+     */
+    public int updatePriority() {
+        if (appUpdateInfo != null)
+            return appUpdateInfo.updatePriority();
+
+        if (updateSnapshot != null)
+            return updateSnapshot.updatePriority();
+
+        return 0;
+    }
+
+    /**
+     * @return the days since the update became available, or {@link UpdateSnapshot#STALENESS_UNKNOWN}
+     */
+    public int clientVersionStalenessDays() {
+        if (appUpdateInfo != null) {
+            Integer stalenessDays = appUpdateInfo.clientVersionStalenessDays();
+            return stalenessDays != null ? stalenessDays : UpdateSnapshot.STALENESS_UNKNOWN;
+        }
+
+        if (updateSnapshot != null)
+            return updateSnapshot.clientVersionStalenessDays();
+
+        return UpdateSnapshot.STALENESS_UNKNOWN;
+    }
+
     public int availableVersionCode() {
         if (appUpdateInfo != null)
             return appUpdateInfo.availableVersionCode();
 
+        if (updateSnapshot != null)
+            return updateSnapshot.availableVersionCode();
+
         return NO_UPDATE;
     }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.util.Log;
+
+/**
+ * An {@link InAppUpdateLogger} that writes to Logcat, from a minimum priority.
+ */
+public class LogcatLogger implements InAppUpdateLogger {
+
+    private final int minPriority;
+
+    /**
+     * @param minPriority the lowest {@link Log} priority to write, e.g. {@link Log#DEBUG}
+     */
+    public LogcatLogger(int minPriority) {
+        this.minPriority = minPriority;
+    }
+
+    @Override
+    public boolean isLoggable(int priority) {
+        return priority >= minPriority;
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable throwable) {
+        if (throwable != null)
+            message = message + '\n' + Log.getStackTraceString(throwable);
+
+        Log.println(priority, tag, message);
+    }
+}
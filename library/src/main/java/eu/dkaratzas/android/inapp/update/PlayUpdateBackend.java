@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.IntentSender;
+
+import com.google.android.play.core.appupdate.AppUpdateInfo;
+import com.google.android.play.core.appupdate.AppUpdateManager;
+import com.google.android.play.core.appupdate.AppUpdateManagerFactory;
+import com.google.android.play.core.install.InstallState;
+import com.google.android.play.core.install.InstallStateUpdatedListener;
+import com.google.android.play.core.install.model.AppUpdateType;
+import com.google.android.play.core.install.model.UpdateAvailability;
+import com.google.android.play.core.tasks.OnFailureListener;
+import com.google.android.play.core.tasks.OnSuccessListener;
+import com.google.android.play.core.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default {@link UpdateBackend}, backed by the Play Core {@link AppUpdateManager}.
+ * <p>
+ * One instance is shared by the whole process, through the {@link InAppUpdateCoordinator}.
+ * It keeps exactly one {@link InstallStateUpdatedListener} registration while callbacks are
+ * registered, and at most one {@code getAppUpdateInfo()} request in flight.
+ */
+class PlayUpdateBackend implements UpdateBackend {
+
+    private static final String LOG_TAG = "PlayUpdateBackend";
+
+    private final AppUpdateManager appUpdateManager;
+    private final List<Callback> callbacks = new ArrayList<>();
+    private Task<AppUpdateInfo> appUpdateInfoTask;
+    private AppUpdateInfo appUpdateInfo;
+    private UpdateSnapshot snapshot;
+
+    private final InstallStateUpdatedListener installStateUpdatedListener = new InstallStateUpdatedListener() {
+        @Override
+        public void onStateUpdate(InstallState installState) {
+            UpdateSnapshot state = snapshot != null
+                    ? snapshot.withInstallStatus(installState.installStatus())
+                    : new UpdateSnapshot(UpdateAvailability.UNKNOWN, 0, installState.installStatus(), 0,
+                    UpdateSnapshot.STALENESS_UNKNOWN, 0, System.currentTimeMillis());
+
+            // Iterate over a copy, a handler may finish its activity and unregister while dispatching.
+            for (Callback callback : new ArrayList<>(callbacks)) {
+                callback.onUpdateStatus(state, installState.bytesDownloaded(), installState.totalBytesToDownload());
+            }
+        }
+    };
+
+    PlayUpdateBackend(Context context) {
+        appUpdateManager = AppUpdateManagerFactory.create(context);
+    }
+
+    @Override
+    public void registerCallback(Callback callback) {
+        if (callbacks.contains(callback))
+            return;
+
+        callbacks.add(callback);
+
+        if (callbacks.size() == 1)
+            appUpdateManager.registerListener(installStateUpdatedListener);
+    }
+
+    @Override
+    public void unregisterCallback(Callback callback) {
+        if (callbacks.remove(callback) && callbacks.isEmpty())
+            appUpdateManager.unregisterListener(installStateUpdatedListener);
+    }
+
+    @Override
+    public void checkForUpdate(final Callback callback) {
+        // Share the request that is already in flight.
+        if (appUpdateInfoTask == null || appUpdateInfoTask.isComplete())
+            appUpdateInfoTask = appUpdateManager.getAppUpdateInfo();
+
+        appUpdateInfoTask
+                .addOnSuccessListener(new OnSuccessListener<AppUpdateInfo>() {
+                    @Override
+                    public void onSuccess(AppUpdateInfo result) {
+                        // All the callers of a shared request get the same snapshot.
+                        if (result != appUpdateInfo) {
+                            appUpdateInfo = result;
+                            snapshot = UpdateSnapshot.from(result, System.currentTimeMillis());
+                        }
+
+                        callback.onUpdateStatus(snapshot, result.bytesDownloaded(), result.totalBytesToDownload());
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        UpdateLog.e(LOG_TAG, "error in checkForUpdate", e);
+                        callback.onUpdateError(Constants.UPDATE_ERROR_CHECK_APP_UPDATE, e);
+                    }
+                });
+    }
+
+    @Override
+    public boolean startUpdate(Activity activity, int updateType, int requestCode, Callback callback) {
+        int errorCode = updateType == AppUpdateType.IMMEDIATE
+                ? Constants.UPDATE_ERROR_START_APP_UPDATE_IMMEDIATE
+                : Constants.UPDATE_ERROR_START_APP_UPDATE_FLEXIBLE;
+
+        if (appUpdateInfo == null) {
+            callback.onUpdateError(errorCode, new IllegalStateException("No update info, check for an update first"));
+            return false;
+        }
+
+        try {
+            return appUpdateManager.startUpdateFlowForResult(
+                    appUpdateInfo,
+                    updateType,
+                    // The current activity making the update request.
+                    activity,
+                    // Include a request code to later monitor this update request.
+                    requestCode);
+        } catch (IntentSender.SendIntentException e) {
+            UpdateLog.e(LOG_TAG, "error in startUpdate", e);
+            callback.onUpdateError(errorCode, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void completeUpdate(Activity activity, Callback callback) {
+        appUpdateManager.completeUpdate();
+    }
+}
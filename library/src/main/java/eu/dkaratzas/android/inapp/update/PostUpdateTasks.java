@@ -0,0 +1,294 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.Activity;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs one-time work, like database migrations or cache rebuilds, on the first launch after an update.
+ * <p>
+ * Register the tasks early, e.g. in {@code Application.onCreate()}. The first {@link InAppUpdateManager}
+ * of the process compares the current versionCode with the one of the previous launch, and if the app
+ * has been updated, runs the tasks on a background executor after the first frame, the highest
+ * priority first. Nothing runs on the first install, or on launches without an update. When no earlier
+ * versionCode is known, e.g. on the first launch with this library, the install times of the package tell
+ * an update from the first install.
+ * <p>
+ * The update is only marked as handled once every task has succeeded. If a task throws, or the process
+ * dies before the tasks are done, all the tasks run again on the next launch, so they must be idempotent.
+ */
+public final class PostUpdateTasks {
+
+    /**
+     * Callback methods where the first launch after an update is reported.
+     */
+    public interface Listener {
+        /**
+         * On the first frame of the first launch after an update. Called on the main thread.
+         *
+         * @param previousVersionCode        the versionCode of the previous launch, or 0 if unknown
+         * @param currentVersionCode         the current versionCode
+         * @param startupToInteractiveMillis the time from the start of the process to the first frame
+         * @param installToInteractiveMillis the time from the install request of the update, or from the
+         *                                   end of the install if it was not requested through this library,
+         *                                   to the first frame
+         */
+        void onFirstLaunchAfterUpdate(long previousVersionCode, long currentVersionCode,
+                                      long startupToInteractiveMillis, long installToInteractiveMillis);
+
+        /**
+         * On completion of all the registered tasks, even if some failed. Called on the main thread.
+         *
+         * @param durationMillis the time spent running the tasks
+         */
+        void onPostUpdateTasksCompleted(long durationMillis);
+    }
+
+    private static final String LOG_TAG = "PostUpdateTasks";
+    // Before Android 7.0 the process start is unknown, the tasks are registered early in the launch instead.
+    private static final long CLASS_LOAD_ELAPSED_REALTIME = SystemClock.elapsedRealtime();
+    private static PostUpdateTasks instance;
+
+    private final List<Task> tasks = new ArrayList<>();
+    private Listener listener;
+    private Executor executor;
+    private boolean started = false;
+
+    private static class Task {
+        final String name;
+        final int priority;
+        final Runnable runnable;
+
+        Task(String name, int priority, Runnable runnable) {
+            this.name = name;
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+    }
+
+    public static synchronized PostUpdateTasks getInstance() {
+        if (instance == null) {
+            instance = new PostUpdateTasks();
+        }
+        return instance;
+    }
+
+    private PostUpdateTasks() {
+    }
+
+    /**
+     * Registers a task for the first launch after an update.
+     *
+     * @param name     the task name, used for logging
+     * @param priority the priority, tasks with higher priority run first
+     * @param task     the task, run on a background thread
+     * @return the post update tasks instance
+     */
+    public synchronized PostUpdateTasks register(String name, int priority, Runnable task) {
+        tasks.add(new Task(name, priority, task));
+        return this;
+    }
+
+    /**
+     * Set the callback listener
+     *
+     * @param listener the listener
+     * @return the post update tasks instance
+     */
+    public synchronized PostUpdateTasks listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Set the executor of the tasks. Default is a single background thread.
+     *
+     * @param executor the executor
+     * @return the post update tasks instance
+     */
+    public synchronized PostUpdateTasks executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Detects the first launch after an update, and schedules the tasks after the first frame of the activity.
+     * Called by {@link InAppUpdateManager}, only the first call of the process has an effect.
+     *
+     * @param activity    the activity
+     * @param preferences the preferences that keep the versionCode of the previous launch
+     */
+    synchronized void start(Activity activity, UpdatePreferences preferences) {
+        if (started)
+            return;
+        started = true;
+
+        PackageInfo packageInfo;
+        try {
+            packageInfo = AppVersion.installedPackageInfo(activity);
+        } catch (PackageManager.NameNotFoundException e) {
+            UpdateLog.e(LOG_TAG, "error in start", e);
+            return;
+        }
+
+        long currentVersionCode = AppVersion.versionCode(packageInfo);
+        long previousVersionCode = preferences.getLastVersionCode();
+
+        if (previousVersionCode == currentVersionCode) {
+            // An install request that did not go through.
+            if (preferences.getCompleteUpdateTime() != 0)
+                preferences.setCompleteUpdateTime(0);
+            return;
+        }
+
+        // First install, or a downgrade.
+        if ((previousVersionCode == 0 && !AppVersion.isUpdated(packageInfo)) || previousVersionCode > currentVersionCode) {
+            preferences.setLastVersionCode(currentVersionCode);
+            preferences.setCompleteUpdateTime(0);
+            return;
+        }
+
+        long installTime = preferences.getCompleteUpdateTime();
+        if (installTime == 0 || installTime > packageInfo.lastUpdateTime)
+            installTime = packageInfo.lastUpdateTime;
+
+        runAfterFirstFrame(activity, preferences, previousVersionCode, currentVersionCode, installTime);
+    }
+
+    private void runAfterFirstFrame(Activity activity, final UpdatePreferences preferences,
+                                    final long previousVersionCode, final long currentVersionCode,
+                                    final long installTime) {
+        final View decorView = activity.getWindow().getDecorView();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+
+                // Posted, so it runs once the first frame has been drawn.
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFirstFrame(mainHandler, preferences, previousVersionCode, currentVersionCode, installTime);
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private synchronized void onFirstFrame(final Handler mainHandler, final UpdatePreferences preferences,
+                                           long previousVersionCode, final long currentVersionCode, long installTime) {
+        final Listener listener = this.listener;
+        // Only the first launch of this update is measured.
+        preferences.setCompleteUpdateTime(0);
+
+        if (listener != null)
+            listener.onFirstLaunchAfterUpdate(previousVersionCode, currentVersionCode,
+                    SystemClock.elapsedRealtime() - processStartElapsedRealtime(),
+                    System.currentTimeMillis() - installTime);
+
+        final List<Task> sorted = new ArrayList<>(tasks);
+        Collections.sort(sorted, new Comparator<Task>() {
+            @Override
+            public int compare(Task first, Task second) {
+                return second.priority < first.priority ? -1 : (second.priority == first.priority ? 0 : 1);
+            }
+        });
+
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                boolean failed = false;
+
+                for (Task task : sorted) {
+                    try {
+                        task.runnable.run();
+                    } catch (RuntimeException e) {
+                        UpdateLog.e(LOG_TAG, "error in task: {}", task.name, e);
+                        failed = true;
+                    }
+                }
+
+                // Failed tasks run again on the next launch.
+                if (!failed)
+                    preferences.setLastVersionCode(currentVersionCode);
+
+                if (listener != null) {
+                    final long duration = SystemClock.elapsedRealtime() - start;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onPostUpdateTasksCompleted(duration);
+                        }
+                    });
+                }
+            }
+        };
+
+        if (executor != null) {
+            executor.execute(work);
+        } else {
+            ExecutorService ownExecutor = newBackgroundExecutor();
+            ownExecutor.execute(work);
+            // The thread exits once the tasks are done.
+            ownExecutor.shutdown();
+        }
+    }
+
+    private static long processStartElapsedRealtime() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            return Process.getStartElapsedRealtime();
+
+        return CLASS_LOAD_ELAPSED_REALTIME;
+    }
+
+    private static ExecutorService newBackgroundExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+}
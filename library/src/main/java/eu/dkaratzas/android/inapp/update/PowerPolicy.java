@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Reads the power state of the device, to hold back non-essential update work under pressure:
+ * Battery Saver, or thermal throttling at or above the threshold. Doze is not considered,
+ * the device never idles while an activity of the app is in the foreground.
+ */
+class PowerPolicy {
+
+    /**
+     * Callback for the end of the power pressure. Called on the main thread.
+     */
+    interface OnPressureReliefListener {
+        void onPressureRelief();
+    }
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private int thermalThreshold = PowerManager.THERMAL_STATUS_MODERATE;
+    private OnPressureReliefListener reliefListener;
+    private BroadcastReceiver powerSaveReceiver;
+    private Object thermalListener;
+
+    PowerPolicy(Context context) {
+        this.context = context.getApplicationContext();
+        powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    void setThermalThreshold(int thermalThreshold) {
+        this.thermalThreshold = thermalThreshold;
+    }
+
+    /**
+     * @return one of the {@code Constants.SUPPRESSED_*} reasons, or {@link Constants#SUPPRESSED_NONE}
+     */
+    int suppressionReason() {
+        if (powerManager == null)
+            return Constants.SUPPRESSED_NONE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && powerManager.isPowerSaveMode())
+            return Constants.SUPPRESSED_POWER_SAVE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager.getCurrentThermalStatus() >= thermalThreshold)
+            return Constants.SUPPRESSED_THERMAL;
+
+        return Constants.SUPPRESSED_NONE;
+    }
+
+    /**
+     * Watches the power state until the pressure ends, then notifies the listener once.
+     * Replaces the listener of an earlier call.
+     *
+     * @param listener the listener
+     */
+    void watchForRelief(OnPressureReliefListener listener) {
+        reliefListener = listener;
+
+        if (powerManager == null || powerSaveReceiver != null)
+            return;
+
+        // A system broadcast, it needs no export flag.
+        powerSaveReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onPowerStateChanged();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            context.registerReceiver(powerSaveReceiver, new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            addThermalListener();
+    }
+
+    /**
+     * Stops watching the power state, without notifying the listener.
+     */
+    void stopWatching() {
+        reliefListener = null;
+
+        if (powerSaveReceiver != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                context.unregisterReceiver(powerSaveReceiver);
+            powerSaveReceiver = null;
+        }
+
+        if (thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            powerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalListener);
+            thermalListener = null;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void addThermalListener() {
+        PowerManager.OnThermalStatusChangedListener listener = new PowerManager.OnThermalStatusChangedListener() {
+            @Override
+            public void onThermalStatusChanged(int status) {
+                onPowerStateChanged();
+            }
+        };
+        // Without an executor, the listener is called on the main thread.
+        powerManager.addThermalStatusListener(listener);
+        thermalListener = listener;
+    }
+
+    private void onPowerStateChanged() {
+        if (reliefListener == null || suppressionReason() != Constants.SUPPRESSED_NONE)
+            return;
+
+        OnPressureReliefListener listener = reliefListener;
+        stopWatching();
+        listener.onPressureRelief();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static eu.dkaratzas.android.inapp.update.InAppUpdateManager.FlushHook;
+import static eu.dkaratzas.android.inapp.update.InAppUpdateManager.FlushListener;
+
+/**
+ * Runs the registered {@link FlushHook}s in parallel before the app is restarted to complete an update.
+ * <p>
+ * The hooks run on a bounded pool. The restart waits for all of them, but never longer than the deadline.
+ * Hooks, listener and deadline are set on the main thread.
+ */
+class RestartFlusher {
+
+    static final long DEFAULT_DEADLINE_MILLIS = 2000;
+    private static final int MAX_THREADS = 4;
+    private static final String LOG_TAG = "RestartFlusher";
+
+    private final Map<String, FlushHook> hooks = new LinkedHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ThreadPoolExecutor executor;
+    private FlushListener listener;
+    private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+    private boolean flushing = false;
+
+    void addHook(String name, FlushHook hook) {
+        hooks.put(name, hook);
+    }
+
+    void removeHook(String name) {
+        hooks.remove(name);
+    }
+
+    void setListener(FlushListener listener) {
+        this.listener = listener;
+    }
+
+    void setDeadline(long deadlineMillis) {
+        if (deadlineMillis < 0)
+            throw new IllegalArgumentException("Invalid flush deadline: " + deadlineMillis);
+
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Runs the hooks, then the given action on the main thread.
+     * Calls made while a flush is running are ignored.
+     *
+     * @param then the action, e.g. the completion of the update
+     */
+    void flush(final Runnable then) {
+        if (flushing)
+            return;
+
+        if (hooks.isEmpty()) {
+            then.run();
+            return;
+        }
+
+        flushing = true;
+
+        final List<Map.Entry<String, FlushHook>> entries = new ArrayList<>(hooks.entrySet());
+        final CountDownLatch latch = new CountDownLatch(entries.size());
+        final FlushListener listener = this.listener;
+        final long deadline = deadlineMillis;
+        final long start = SystemClock.elapsedRealtime();
+
+        ThreadPoolExecutor executor = getExecutor();
+        for (final Map.Entry<String, FlushHook> entry : entries) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long hookStart = SystemClock.elapsedRealtime();
+                    Throwable error = null;
+                    try {
+                        entry.getValue().flush();
+                    } catch (Exception e) {
+                        UpdateLog.e(LOG_TAG, "error in flush hook: {}", entry.getKey(), e);
+                        error = e;
+                    }
+
+                    reportHook(listener, entry.getKey(), SystemClock.elapsedRealtime() - hookStart, error);
+                    latch.countDown();
+                }
+            });
+        }
+
+        // Wait off the main thread, the pool may be busy with the hooks.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean completed;
+                try {
+                    completed = latch.await(deadline, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    completed = false;
+                }
+
+                final boolean timedOut = !completed;
+                final long duration = SystemClock.elapsedRealtime() - start;
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushing = false;
+
+                        if (timedOut)
+                            UpdateLog.w(LOG_TAG, "flush deadline exceeded, restarting with {} hooks running", latch.getCount());
+
+                        if (listener != null)
+                            listener.onFlushFinished(duration, timedOut);
+
+                        then.run();
+                    }
+                });
+            }
+        }, LOG_TAG).start();
+    }
+
+    private void reportHook(final FlushListener listener, final String name, final long durationMillis, final Throwable error) {
+        if (listener == null)
+            return;
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFlushHookFinished(name, durationMillis, error);
+            }
+        });
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, LOG_TAG);
+                }
+            });
+            // Threads only live around a restart, which usually never returns.
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+}
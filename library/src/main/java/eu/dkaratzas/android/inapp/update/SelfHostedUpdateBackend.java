@@ -0,0 +1,456 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.RequiresApi;
+
+import com.google.android.play.core.install.model.AppUpdateType;
+import com.google.android.play.core.install.model.InstallStatus;
+import com.google.android.play.core.install.model.UpdateAvailability;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link UpdateBackend} for builds that are not distributed through Google Play.
+ * <p>
+ * Reads a version manifest from an HTTP endpoint:
+ * <pre>
+ * {"versionCode": 42, "url": "https://example.com/app-42.apk", "sha256": "9f86d0...", "priority": 0}
+ * </pre>
+ * The APK is streamed to disk, resuming an interrupted download with a range request, and its SHA-256
+ * is verified while the bytes arrive. It is installed through a {@link PackageInstaller} session.
+ * Relative APK urls are resolved against the manifest url. Both update types download in the background,
+ * like the flexible flow of Google Play, and {@link InAppUpdateManager#completeUpdate()} installs the update.
+ * The app must declare the {@code android.permission.REQUEST_INSTALL_PACKAGES} permission.
+ * <p>
+ * Get the instance with {@link #getInstance(Context, String)}: the process shares one backend per
+ * manifest url, so every activity sees the same download, and only one download runs at a time.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class SelfHostedUpdateBackend implements UpdateBackend {
+
+    private static final String LOG_TAG = "SelfHostedUpdate";
+    private static final String APK_PREFIX = "inappupdate-";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final long PROGRESS_STEP_BYTES = 256 * 1024;
+    // PendingIntent.FLAG_MUTABLE, the installer fills in the status extras.
+    private static final int FLAG_MUTABLE = 0x02000000;
+    // Context.RECEIVER_NOT_EXPORTED, required for runtime receivers from Android 14.
+    private static final int RECEIVER_NOT_EXPORTED = 0x4;
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+
+    private final Context context;
+    private final URL manifestUrl;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // One thread at most, which exits once the backend is idle.
+    private final ExecutorService executor = new ThreadPoolExecutor(0, 1,
+            EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ApkDownloader downloader = new ApkDownloader();
+    private final List<Callback> callbacks = new ArrayList<>();
+    private Release release;
+    private boolean downloading = false;
+    private BroadcastReceiver installReceiver;
+
+    private static class Release {
+        final int versionCode;
+        final URL url;
+        final String sha256;
+        final int priority;
+
+        Release(int versionCode, URL url, String sha256, int priority) {
+            this.versionCode = versionCode;
+            this.url = url;
+            this.sha256 = sha256;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Returns the backend of the given manifest url, creating it on first use.
+     * Must be called on the main thread.
+     *
+     * @param context     the context
+     * @param manifestUrl the url of the version manifest
+     * @return the process-wide backend of the url
+     * @throws IllegalArgumentException if the url is malformed
+     */
+    public static SelfHostedUpdateBackend getInstance(Context context, String manifestUrl) {
+        return InAppUpdateCoordinator.getInstance(context).getSelfHostedBackend(manifestUrl);
+    }
+
+    /**
+     * Created by the {@link InAppUpdateCoordinator}, use {@link #getInstance(Context, String)}.
+     *
+     * @param context     the context
+     * @param manifestUrl the url of the version manifest
+     * @throws IllegalArgumentException if the url is malformed
+     */
+    SelfHostedUpdateBackend(Context context, String manifestUrl) {
+        this.context = context.getApplicationContext();
+        try {
+            this.manifestUrl = new URL(manifestUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid manifest url: " + manifestUrl, e);
+        }
+    }
+
+    @Override
+    public void registerCallback(Callback callback) {
+        if (!callbacks.contains(callback))
+            callbacks.add(callback);
+    }
+
+    @Override
+    public void unregisterCallback(Callback callback) {
+        callbacks.remove(callback);
+    }
+
+    @Override
+    public void checkForUpdate(final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Release latest = fetchRelease();
+                    long installedVersionCode = AppVersion.installedVersionCode(context);
+
+                    boolean available = latest.versionCode > installedVersionCode;
+                    boolean downloaded = available && isDownloaded(latest);
+                    postRelease(latest);
+                    postStatus(callback, latest,
+                            available ? UpdateAvailability.UPDATE_AVAILABLE : UpdateAvailability.UPDATE_NOT_AVAILABLE,
+                            downloaded ? InstallStatus.DOWNLOADED : InstallStatus.UNKNOWN, 0, -1);
+                } catch (IOException | JSONException | PackageManager.NameNotFoundException e) {
+                    UpdateLog.e(LOG_TAG, "error in checkForUpdate", e);
+                    postError(callback, Constants.UPDATE_ERROR_SELF_HOSTED_CHECK, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean startUpdate(Activity activity, int updateType, int requestCode, Callback callback) {
+        final Release latest = release;
+        if (latest == null) {
+            callback.onUpdateError(Constants.UPDATE_ERROR_SELF_HOSTED_DOWNLOAD, new IllegalStateException("No update available"));
+            return false;
+        }
+
+        if (downloading)
+            return true;
+
+        if (isDownloaded(latest)) {
+            postStatus(null, latest, UpdateAvailability.UPDATE_AVAILABLE, InstallStatus.DOWNLOADED, 0, -1);
+            return true;
+        }
+
+        downloading = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File apk = apkFile(latest);
+                File partial = new File(apk.getPath() + PARTIAL_SUFFIX);
+                deleteOtherVersions(latest);
+
+                try {
+                    downloader.download(latest.url, partial, latest.sha256, new ApkDownloader.ProgressListener() {
+                        private long reported = 0;
+
+                        @Override
+                        public void onProgress(long bytesDownloaded, long totalBytes) {
+                            // Throttled, the download makes one call per buffer.
+                            if (bytesDownloaded - reported >= PROGRESS_STEP_BYTES) {
+                                reported = bytesDownloaded;
+                                postStatus(null, latest, UpdateAvailability.DEVELOPER_TRIGGERED_UPDATE_IN_PROGRESS,
+                                        InstallStatus.DOWNLOADING, bytesDownloaded, totalBytes);
+                            }
+                        }
+                    });
+
+                    // Only verified downloads get the final name.
+                    if (!partial.renameTo(apk))
+                        throw new IOException("Can not rename " + partial);
+
+                    postStatus(null, latest, UpdateAvailability.UPDATE_AVAILABLE, InstallStatus.DOWNLOADED, apk.length(), apk.length());
+                } catch (IOException e) {
+                    UpdateLog.e(LOG_TAG, "error in startUpdate", e);
+                    postStatus(null, latest, UpdateAvailability.UPDATE_AVAILABLE, InstallStatus.FAILED, 0, -1);
+                    postError(null, Constants.UPDATE_ERROR_SELF_HOSTED_DOWNLOAD, e);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void completeUpdate(Activity activity, Callback callback) {
+        final Release latest = release;
+        if (latest == null || !isDownloaded(latest)) {
+            callback.onUpdateError(Constants.UPDATE_ERROR_SELF_HOSTED_INSTALL, new IllegalStateException("No update downloaded"));
+            return;
+        }
+
+        registerInstallReceiver(latest);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PackageInstaller.Session session = null;
+                try {
+                    PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+                    PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+                    params.setAppPackageName(context.getPackageName());
+
+                    int sessionId = packageInstaller.createSession(params);
+                    session = packageInstaller.openSession(sessionId);
+
+                    File apk = apkFile(latest);
+                    OutputStream output = session.openWrite("base.apk", 0, apk.length());
+                    try {
+                        downloader.copyFile(apk, Channels.newChannel(output));
+                        session.fsync(output);
+                    } finally {
+                        output.close();
+                    }
+
+                    postStatus(null, latest, UpdateAvailability.UPDATE_AVAILABLE, InstallStatus.INSTALLING, apk.length(), apk.length());
+                    session.commit(installStatusIntent(sessionId).getIntentSender());
+                } catch (IOException | RuntimeException e) {
+                    UpdateLog.e(LOG_TAG, "error in completeUpdate", e);
+                    if (session != null)
+                        session.abandon();
+                    postUnregisterInstallReceiver();
+                    postStatus(null, latest, UpdateAvailability.UPDATE_AVAILABLE, InstallStatus.FAILED, 0, -1);
+                    postError(null, Constants.UPDATE_ERROR_SELF_HOSTED_INSTALL, e);
+                } finally {
+                    if (session != null)
+                        session.close();
+                }
+            }
+        });
+    }
+
+    private Release fetchRelease() throws IOException, JSONException {
+        HttpURLConnection connection = ApkDownloader.open(manifestUrl, 0);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("Unexpected HTTP response: " + connection.getResponseCode());
+
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                byte[] chunk = new byte[4096];
+                int read;
+                while ((read = input.read(chunk)) >= 0) {
+                    body.write(chunk, 0, read);
+                }
+            } finally {
+                input.close();
+            }
+
+            JSONObject json = new JSONObject(body.toString("UTF-8"));
+            return new Release(json.getInt("versionCode"),
+                    new URL(manifestUrl, json.getString("url")),
+                    json.getString("sha256"),
+                    json.optInt("priority", 0));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private File apkFile(Release release) {
+        return new File(context.getNoBackupFilesDir(), APK_PREFIX + release.versionCode + ".apk");
+    }
+
+    private boolean isDownloaded(Release release) {
+        return apkFile(release).exists();
+    }
+
+    private void deleteOtherVersions(Release release) {
+        File[] files = context.getNoBackupFilesDir().listFiles();
+        if (files == null)
+            return;
+
+        String keep = APK_PREFIX + release.versionCode + ".";
+        for (File file : files) {
+            if (file.getName().startsWith(APK_PREFIX) && !file.getName().startsWith(keep))
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+    }
+
+    private PendingIntent installStatusIntent(int sessionId) {
+        Intent intent = new Intent(installAction()).setPackage(context.getPackageName());
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= 31)
+            flags |= FLAG_MUTABLE;
+        return PendingIntent.getBroadcast(context, sessionId, intent, flags);
+    }
+
+    private String installAction() {
+        return context.getPackageName() + ".inappupdate.INSTALL_STATUS";
+    }
+
+    private void registerInstallReceiver(final Release latest) {
+        unregisterInstallReceiver();
+
+        installReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+
+                if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                    // The user has to confirm the install.
+                    Intent confirmation = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                    if (confirmation != null) {
+                        confirmation.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                        context.startActivity(confirmation);
+                    }
+                    return;
+                }
+
+                // A final status, the session is over.
+                unregisterInstallReceiver();
+
+                if (status == PackageInstaller.STATUS_SUCCESS) {
+                    dispatchStatus(null, snapshot(latest, UpdateAvailability.UPDATE_NOT_AVAILABLE, InstallStatus.INSTALLED), 0, -1);
+                } else {
+                    String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+                    int installStatus = status == PackageInstaller.STATUS_FAILURE_ABORTED ? InstallStatus.CANCELED : InstallStatus.FAILED;
+                    dispatchStatus(null, snapshot(latest, UpdateAvailability.UPDATE_AVAILABLE, installStatus), 0, -1);
+                    dispatchError(null, Constants.UPDATE_ERROR_SELF_HOSTED_INSTALL, new IOException("Install failed: " + status + " " + message));
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(installAction());
+        if (Build.VERSION.SDK_INT >= 33)
+            context.registerReceiver(installReceiver, filter, RECEIVER_NOT_EXPORTED);
+        else
+            context.registerReceiver(installReceiver, filter);
+    }
+
+    private void unregisterInstallReceiver() {
+        if (installReceiver != null) {
+            context.unregisterReceiver(installReceiver);
+            installReceiver = null;
+        }
+    }
+
+    private void postUnregisterInstallReceiver() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                unregisterInstallReceiver();
+            }
+        });
+    }
+
+    private void postRelease(final Release latest) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                release = latest;
+            }
+        });
+    }
+
+    /**
+     * Posts a status to the main thread, for the given callback or, if null, the registered callbacks.
+     */
+    private void postStatus(final Callback callback, final Release latest, int updateAvailability, int installStatus,
+                            final long bytesDownloaded, final long totalBytes) {
+        final UpdateSnapshot snapshot = snapshot(latest, updateAvailability, installStatus);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchStatus(callback, snapshot, bytesDownloaded, totalBytes);
+            }
+        });
+    }
+
+    private void postError(final Callback callback, final int code, final Throwable error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchError(callback, code, error);
+            }
+        });
+    }
+
+    private void dispatchStatus(Callback callback, UpdateSnapshot snapshot, long bytesDownloaded, long totalBytes) {
+        int installStatus = snapshot.installStatus();
+        if (installStatus == InstallStatus.DOWNLOADED || installStatus == InstallStatus.FAILED)
+            downloading = false;
+
+        if (callback != null) {
+            callback.onUpdateStatus(snapshot, bytesDownloaded, totalBytes);
+            return;
+        }
+
+        for (Callback registered : new ArrayList<>(callbacks)) {
+            registered.onUpdateStatus(snapshot, bytesDownloaded, totalBytes);
+        }
+    }
+
+    private void dispatchError(Callback callback, int code, Throwable error) {
+        if (callback != null) {
+            callback.onUpdateError(code, error);
+            return;
+        }
+
+        for (Callback registered : new ArrayList<>(callbacks)) {
+            registered.onUpdateError(code, error);
+        }
+    }
+
+    private static UpdateSnapshot snapshot(Release release, int updateAvailability, int installStatus) {
+        return new UpdateSnapshot(updateAvailability, release.versionCode, installStatus,
+                release.priority, UpdateSnapshot.STALENESS_UNKNOWN,
+                UpdateSnapshot.allowedUpdateTypes(AppUpdateType.FLEXIBLE, AppUpdateType.IMMEDIATE),
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * The file behind {@link SharedUpdateStatus}, read and written in place by every process of the app.
+ * <p>
+ * The file holds one fixed size record: the last {@link UpdateSnapshot}, and the lease of the process
+ * that is checking. It is read through a memory mapping and guarded by a {@link FileLock}, so no
+ * process has to be started, and no IPC made, to serve another one. Writes go through the channel
+ * instead of the mapping, so that file observers in the other processes are notified.
+ */
+class SharedStatusFile {
+
+    static final String FILE_NAME = "inappupdate-status";
+
+    // Snapshot, a check time of 0 means nothing was published yet.
+    private static final int OFFSET_CHECK_TIME = 0;
+    private static final int OFFSET_UPDATE_AVAILABILITY = 8;
+    private static final int OFFSET_AVAILABLE_VERSION_CODE = 12;
+    private static final int OFFSET_INSTALL_STATUS = 16;
+    private static final int OFFSET_UPDATE_PRIORITY = 20;
+    private static final int OFFSET_STALENESS_DAYS = 24;
+    private static final int OFFSET_ALLOWED_UPDATE_TYPES = 28;
+    private static final int SNAPSHOT_SIZE = 32;
+
+    // Lease, an owner of 0 means no process is checking.
+    private static final int OFFSET_LEASE_OWNER = 32;
+    private static final int OFFSET_LEASE_EXPIRY = 36;
+    private static final int LEASE_SIZE = 12;
+
+    private static final int FILE_SIZE = 48;
+
+    private static SharedStatusFile instance;
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final ByteBuffer snapshotRecord = ByteBuffer.allocate(SNAPSHOT_SIZE);
+    private final ByteBuffer leaseRecord = ByteBuffer.allocate(LEASE_SIZE);
+
+    static synchronized SharedStatusFile getInstance(Context context) throws IOException {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            File dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? appContext.getNoBackupFilesDir()
+                    : appContext.getFilesDir();
+            instance = new SharedStatusFile(new File(dir, FILE_NAME));
+        }
+        return instance;
+    }
+
+    private SharedStatusFile(File file) throws IOException {
+        this.file = file;
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        FileLock lock = channel.lock();
+        try {
+            // The first process sizes the file, a mapping beyond its end can not be read.
+            if (channel.size() < FILE_SIZE)
+                channel.write(ByteBuffer.allocate(FILE_SIZE), 0);
+        } finally {
+            lock.release();
+        }
+
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the last published snapshot, or null if no process has checked yet
+     * @throws IOException if the file can not be locked
+     */
+    synchronized UpdateSnapshot readSnapshot() throws IOException {
+        FileLock lock = channel.lock(0, FILE_SIZE, true);
+        try {
+            if (mapping.getLong(OFFSET_CHECK_TIME) == 0)
+                return null;
+
+            return new UpdateSnapshot(mapping.getInt(OFFSET_UPDATE_AVAILABILITY),
+                    mapping.getInt(OFFSET_AVAILABLE_VERSION_CODE),
+                    mapping.getInt(OFFSET_INSTALL_STATUS),
+                    mapping.getInt(OFFSET_UPDATE_PRIORITY),
+                    mapping.getInt(OFFSET_STALENESS_DAYS),
+                    mapping.getInt(OFFSET_ALLOWED_UPDATE_TYPES),
+                    mapping.getLong(OFFSET_CHECK_TIME));
+        } finally {
+            lock.release();
+        }
+    }
+
+    synchronized void writeSnapshot(UpdateSnapshot snapshot) throws IOException {
+        snapshotRecord.clear();
+        snapshotRecord.putLong(snapshot.checkTime())
+                .putInt(snapshot.updateAvailability())
+                .putInt(snapshot.availableVersionCode())
+                .putInt(snapshot.installStatus())
+                .putInt(snapshot.updatePriority())
+                .putInt(snapshot.clientVersionStalenessDays())
+                .putInt(snapshot.allowedUpdateTypes());
+        snapshotRecord.flip();
+
+        FileLock lock = channel.lock();
+        try {
+            channel.write(snapshotRecord, OFFSET_CHECK_TIME);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Grants the lease if no other process holds it. A lease expires after its duration,
+     * or as soon as the process that holds it is gone.
+     *
+     * @param pid         the pid of the calling process
+     * @param leaseMillis the duration of the lease
+     * @return true if the lease was granted
+     * @throws IOException if the file can not be locked or written
+     */
+    synchronized boolean tryAcquireLease(int pid, long leaseMillis) throws IOException {
+        FileLock lock = channel.lock();
+        try {
+            int owner = mapping.getInt(OFFSET_LEASE_OWNER);
+            long expiry = mapping.getLong(OFFSET_LEASE_EXPIRY);
+            long now = SystemClock.elapsedRealtime();
+
+            // An expiry too far ahead was set before a reboot.
+            boolean granted = owner == 0 || owner == pid
+                    || now >= expiry || expiry - now > leaseMillis
+                    || !isProcessAlive(owner);
+
+            if (granted)
+                writeLease(pid, now + leaseMillis);
+            return granted;
+        } finally {
+            lock.release();
+        }
+    }
+
+    synchronized void releaseLease(int pid) throws IOException {
+        FileLock lock = channel.lock();
+        try {
+            if (mapping.getInt(OFFSET_LEASE_OWNER) == pid)
+                writeLease(0, 0);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void writeLease(int pid, long expiry) throws IOException {
+        leaseRecord.clear();
+        leaseRecord.putInt(pid).putLong(expiry);
+        leaseRecord.flip();
+        channel.write(leaseRecord, OFFSET_LEASE_OWNER);
+    }
+
+    private static boolean isProcessAlive(int pid) {
+        // The processes of the app share its uid, so their proc entries are visible.
+        return new File("/proc/" + pid).exists();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the last update status published by any process of the app.
+ * <p>
+ * {@link InAppUpdateManager} publishes every answer of Google Play here, so processes that
+ * don't show UI, e.g. a {@code :sync} process, can read it without querying Google Play themselves.
+ * The status is kept in a small file that every process maps and locks on its own, reading it
+ * never starts another process. The library opens, locks and writes the file on a background thread.
+ */
+public final class SharedUpdateStatus {
+
+    /**
+     * Notified when any process publishes a new update status.
+     */
+    public interface OnChangeListener {
+        /**
+         * On shared update status change. Called on the main thread.
+         *
+         * @param snapshot the published status, or null if it can not be read
+         */
+        void onSharedUpdateStatusChanged(UpdateSnapshot snapshot);
+    }
+
+    /**
+     * Receives the result of the file work that runs on the background thread.
+     */
+    interface ResultCallback<T> {
+        /**
+         * Called on the main thread.
+         *
+         * @param result the result
+         */
+        void onResult(T result);
+    }
+
+    private static final String LOG_TAG = "SharedUpdateStatus";
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // One thread keeps the reads, the lease and the writes of this process in order.
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, 1,
+            EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private static final List<OnChangeListener> listeners = new ArrayList<>();
+    private static boolean watching = false;
+    private static FileObserver fileObserver;
+    private static Runnable dispatchChange;
+    private static long dispatchedCheckTime = 0;
+
+    private SharedUpdateStatus() {
+    }
+
+    /**
+     * Returns the last update status published by any process. Reads the file and waits for its lock,
+     * call it off the main thread.
+     *
+     * @param context the context
+     * @return the last status, or null if no process has checked yet
+     */
+    public static UpdateSnapshot get(Context context) {
+        try {
+            return SharedStatusFile.getInstance(context).readSnapshot();
+        } catch (IOException e) {
+            UpdateLog.w(LOG_TAG, "error in get: {}", SharedStatusFile.FILE_NAME, e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers a listener for status changes published by any process, including this one.
+     * Must be called on the main thread.
+     *
+     * @param context  the context
+     * @param listener the listener
+     */
+    public static void registerListener(Context context, OnChangeListener listener) {
+        if (listeners.contains(listener))
+            return;
+
+        listeners.add(listener);
+
+        if (!watching) {
+            watching = true;
+            startWatching(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * Unregisters a listener added by {@link #registerListener(Context, OnChangeListener)}.
+     * Must be called on the main thread.
+     *
+     * @param listener the listener
+     */
+    public static void unregisterListener(OnChangeListener listener) {
+        listeners.remove(listener);
+
+        if (listeners.isEmpty() && watching) {
+            watching = false;
+            mainHandler.removeCallbacks(dispatchChange);
+
+            if (fileObserver != null) {
+                fileObserver.stopWatching();
+                fileObserver = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the last update status on the background thread.
+     *
+     * @param context  the context
+     * @param callback the callback for the status, or null if no process has checked yet
+     */
+    static void read(final Context context, final ResultCallback<UpdateSnapshot> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                postResult(callback, get(context));
+            }
+        });
+    }
+
+    static void publish(final Context context, final UpdateSnapshot snapshot) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SharedStatusFile.getInstance(context).writeSnapshot(snapshot);
+                } catch (IOException e) {
+                    UpdateLog.w(LOG_TAG, "error in publish: {}", SharedStatusFile.FILE_NAME, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks for the right to query Google Play, so that processes don't check at the same time.
+     *
+     * @param context     the context
+     * @param leaseMillis the time after which the lease expires, if it is not released
+     * @param callback    the callback for the answer, true if this process may check
+     */
+    static void tryAcquireCheck(final Context context, final long leaseMillis, final ResultCallback<Boolean> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean granted;
+                try {
+                    granted = SharedStatusFile.getInstance(context).tryAcquireLease(Process.myPid(), leaseMillis);
+                } catch (IOException e) {
+                    // Without the file every process checks on its own.
+                    UpdateLog.w(LOG_TAG, "error in tryAcquireCheck: {}", SharedStatusFile.FILE_NAME, e);
+                    granted = true;
+                }
+                postResult(callback, granted);
+            }
+        });
+    }
+
+    static void releaseCheck(final Context context) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SharedStatusFile.getInstance(context).releaseLease(Process.myPid());
+                } catch (IOException e) {
+                    UpdateLog.w(LOG_TAG, "error in releaseCheck: {}", SharedStatusFile.FILE_NAME, e);
+                }
+            }
+        });
+    }
+
+    private static <T> void postResult(final ResultCallback<T> callback, final T result) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    private static void startWatching(final Context context) {
+        dispatchChange = new Runnable() {
+            @Override
+            public void run() {
+                read(context, new ResultCallback<UpdateSnapshot>() {
+                    @Override
+                    public void onResult(UpdateSnapshot snapshot) {
+                        long checkTime = snapshot != null ? snapshot.checkTime() : 0;
+
+                        // The lease is kept in the same file, only new snapshots are reported.
+                        if (!watching || checkTime == dispatchedCheckTime)
+                            return;
+                        dispatchedCheckTime = checkTime;
+
+                        for (OnChangeListener listener : new ArrayList<>(listeners)) {
+                            listener.onSharedUpdateStatusChanged(snapshot);
+                        }
+                    }
+                });
+            }
+        };
+
+        // The file is created, and the current status read, before the watch starts.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String path;
+                final UpdateSnapshot current;
+                try {
+                    SharedStatusFile file = SharedStatusFile.getInstance(context);
+                    path = file.getFile().getPath();
+                    current = file.readSnapshot();
+                } catch (IOException e) {
+                    UpdateLog.w(LOG_TAG, "error in registerListener: {}", SharedStatusFile.FILE_NAME, e);
+                    return;
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!watching || fileObserver != null)
+                            return;
+
+                        dispatchedCheckTime = current != null ? current.checkTime() : 0;
+                        fileObserver = newFileObserver(path);
+                        fileObserver.startWatching();
+                    }
+                });
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private static FileObserver newFileObserver(String path) {
+        // One observer per process, the observers of the same path share one watch.
+        return new FileObserver(path, FileObserver.MODIFY) {
+            @Override
+            public void onEvent(int event, String path) {
+                // Called on the observer thread, once per write. Conflated on the main thread.
+                mainHandler.removeCallbacks(dispatchChange);
+                mainHandler.post(dispatchChange);
+            }
+        };
+    }
+}
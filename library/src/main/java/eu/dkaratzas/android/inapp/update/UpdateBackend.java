@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.Activity;
+
+/**
+ * A source of app updates, set by {@link InAppUpdateManager#backend(UpdateBackend)}.
+ * Google Play is the default backend.
+ * <p>
+ * States are reported with the Play Core constants of
+ * {@link com.google.android.play.core.install.model.UpdateAvailability},
+ * {@link com.google.android.play.core.install.model.InstallStatus} and
+ * {@link com.google.android.play.core.install.model.AppUpdateType}, so the handler sees
+ * the same {@link InAppUpdateStatus} whatever the source. All methods are called on the main thread.
+ */
+public interface UpdateBackend {
+
+    /**
+     * Callback methods where the backend reports update events. Must be called on the main thread.
+     */
+    interface Callback {
+        /**
+         * On update status.
+         *
+         * @param snapshot             the update and install state
+         * @param bytesDownloaded      the downloaded bytes
+         * @param totalBytesToDownload the total bytes, or -1 if unknown
+         */
+        void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload);
+
+        /**
+         * On update error.
+         *
+         * @param code  one of the error codes of {@link Constants}
+         * @param error the error
+         */
+        void onUpdateError(int code, Throwable error);
+    }
+
+    /**
+     * Registers a callback for the progress of a running update: the download progress,
+     * the install state, and their errors.
+     *
+     * @param callback the callback
+     */
+    void registerCallback(Callback callback);
+
+    void unregisterCallback(Callback callback);
+
+    /**
+     * Checks for update availability. The answer, or the error, is reported to the given callback only.
+     *
+     * @param callback the callback
+     */
+    void checkForUpdate(Callback callback);
+
+    /**
+     * Starts the update found by the last check. The progress is reported to the registered callbacks.
+     *
+     * @param activity    the activity that hosts the update flow
+     * @param updateType  the {@link com.google.android.play.core.install.model.AppUpdateType},
+     *                    one that the snapshot of the last check allows
+     * @param requestCode the request code to later monitor the update flow via onActivityResult()
+     * @param callback    the callback for an error starting the update
+     * @return true if the update was started, or is already running
+     */
+    boolean startUpdate(Activity activity, int updateType, int requestCode, Callback callback);
+
+    /**
+     * Installs the downloaded update. The install state is reported to the registered callbacks.
+     *
+     * @param activity the activity that requested the install
+     * @param callback the callback for an error starting the install
+     */
+    void completeUpdate(Activity activity, Callback callback);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import com.google.android.play.core.install.model.UpdateAvailability;
+
+/**
+ * Decides whether an update check is due, adapting the interval to the last answer of the backend.
+ * <p>
+ * While no update is available the interval doubles after every check, starting from the minimum
+ * and never exceeding the maximum interval. An available update resets the interval to the minimum,
+ * and an urgent one (see {@link UpdateUrgency}) makes the next check due immediately.
+ */
+class UpdateCheckScheduler {
+
+    static final long DEFAULT_MIN_INTERVAL = 15 * 60 * 1000L;
+    static final long DEFAULT_MAX_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Keeps the time and the interval of the last check between launches, implemented by {@link UpdatePreferences}.
+     */
+    interface CheckHistory {
+        long getLastCheckTime();
+
+        long getCheckInterval(long defaultInterval);
+
+        void setCheckResult(long checkTime, long nextInterval);
+    }
+
+    private final CheckHistory preferences;
+    private final long minInterval;
+    private final long maxInterval;
+    private final UpdateUrgency urgency;
+
+    UpdateCheckScheduler(CheckHistory preferences, UpdateUrgency urgency, long minInterval, long maxInterval) {
+        if (minInterval < 0 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Invalid check intervals: " + minInterval + ", " + maxInterval);
+
+        this.preferences = preferences;
+        this.urgency = urgency;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * @return true if enough time has passed since the last check
+     */
+    boolean isCheckDue() {
+        long lastCheckTime = preferences.getLastCheckTime();
+        long now = currentTimeMillis();
+
+        // Never checked, or the wall clock went backwards.
+        if (lastCheckTime == 0 || now < lastCheckTime)
+            return true;
+
+        long interval = Math.min(preferences.getCheckInterval(minInterval), maxInterval);
+        return now - lastCheckTime >= interval;
+    }
+
+    /**
+     * Records the result of a check and computes the interval until the next one.
+     *
+     * @param snapshot the answer of the backend
+     */
+    void onCheckResult(UpdateSnapshot snapshot) {
+        long nextInterval;
+
+        if (snapshot.updateAvailability() == UpdateAvailability.UPDATE_NOT_AVAILABLE) {
+            long interval = preferences.getCheckInterval(0);
+            nextInterval = interval < minInterval ? minInterval : Math.min(interval * 2, maxInterval);
+        } else if (urgency.isUrgent(snapshot)) {
+            nextInterval = 0;
+        } else {
+            nextInterval = minInterval;
+        }
+
+        preferences.setCheckResult(currentTimeMillis(), nextInterval);
+    }
+
+    /**
+     * @return the wall-clock time, overridden by the tests
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.util.Log;
+
+/**
+ * The logging facade of the library.
+ * <p>
+ * Every call checks {@link InAppUpdateLogger#isLoggable(int)} first. The message is only built
+ * when it is loggable, by replacing the {@code {}} placeholder with the argument, and the
+ * primitive overloads avoid boxing. With the default no-op logger nothing is allocated.
+ */
+final class UpdateLog {
+
+    private static final String PLACEHOLDER = "{}";
+
+    private static final InAppUpdateLogger NO_OP = new InAppUpdateLogger() {
+        @Override
+        public boolean isLoggable(int priority) {
+            return false;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable throwable) {
+        }
+    };
+
+    private static volatile InAppUpdateLogger logger = NO_OP;
+
+    private UpdateLog() {
+    }
+
+    static void setLogger(InAppUpdateLogger logger) {
+        UpdateLog.logger = logger != null ? logger : NO_OP;
+    }
+
+    static void d(String tag, String message) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.DEBUG))
+            logger.log(Log.DEBUG, tag, message, null);
+    }
+
+    static void d(String tag, String format, int arg) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.DEBUG))
+            logger.log(Log.DEBUG, tag, format(format, String.valueOf(arg)), null);
+    }
+
+    static void d(String tag, String format, long arg) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.DEBUG))
+            logger.log(Log.DEBUG, tag, format(format, String.valueOf(arg)), null);
+    }
+
+    static void w(String tag, String format, long arg) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.WARN))
+            logger.log(Log.WARN, tag, format(format, String.valueOf(arg)), null);
+    }
+
+    static void w(String tag, String format, Object arg, Throwable throwable) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.WARN))
+            logger.log(Log.WARN, tag, format(format, String.valueOf(arg)), throwable);
+    }
+
+    static void e(String tag, String message, Throwable throwable) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.ERROR))
+            logger.log(Log.ERROR, tag, message, throwable);
+    }
+
+    static void e(String tag, String format, Object arg, Throwable throwable) {
+        InAppUpdateLogger logger = UpdateLog.logger;
+        if (logger.isLoggable(Log.ERROR))
+            logger.log(Log.ERROR, tag, format(format, String.valueOf(arg)), throwable);
+    }
+
+    static String format(String format, String arg) {
+        int index = format.indexOf(PLACEHOLDER);
+        if (index < 0)
+            return format;
+
+        return new StringBuilder(format.length() + arg.length())
+                .append(format, 0, index)
+                .append(arg)
+                .append(format, index + PLACEHOLDER.length(), format.length())
+                .toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Small persistent store for the state the library keeps between launches.
+ * Used by InAppUpdateManager and its helpers.
+ */
+class UpdatePreferences implements UpdateCheckScheduler.CheckHistory {
+
+    private static final String PREFS_NAME = "eu.dkaratzas.android.inapp.update";
+    private static final String KEY_LAST_CHECK_TIME = "last_check_time";
+    private static final String KEY_CHECK_INTERVAL = "check_interval";
+    private static final String KEY_UPDATE_FLOW_IN_FLIGHT = "update_flow_in_flight";
+    private static final String KEY_LAST_VERSION_CODE = "last_version_code";
+    private static final String KEY_DEFERRED_FLEXIBLE_START = "deferred_flexible_start";
+    private static final String KEY_PREFETCH_INTERVAL = "prefetch_interval";
+    private static final String KEY_COMPLETE_UPDATE_TIME = "complete_update_time";
+
+    private final SharedPreferences preferences;
+
+    UpdatePreferences(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public long getLastCheckTime() {
+        return preferences.getLong(KEY_LAST_CHECK_TIME, 0);
+    }
+
+    @Override
+    public long getCheckInterval(long defaultInterval) {
+        return preferences.getLong(KEY_CHECK_INTERVAL, defaultInterval);
+    }
+
+    @Override
+    public void setCheckResult(long checkTime, long nextInterval) {
+        preferences.edit()
+                .putLong(KEY_LAST_CHECK_TIME, checkTime)
+                .putLong(KEY_CHECK_INTERVAL, nextInterval)
+                .apply();
+    }
+
+    boolean isUpdateFlowInFlight() {
+        return preferences.getBoolean(KEY_UPDATE_FLOW_IN_FLIGHT, false);
+    }
+
+    void setUpdateFlowInFlight(boolean inFlight) {
+        if (isUpdateFlowInFlight() != inFlight)
+            preferences.edit().putBoolean(KEY_UPDATE_FLOW_IN_FLIGHT, inFlight).apply();
+    }
+
+    long getLastVersionCode() {
+        return preferences.getLong(KEY_LAST_VERSION_CODE, 0);
+    }
+
+    void setLastVersionCode(long versionCode) {
+        preferences.edit().putLong(KEY_LAST_VERSION_CODE, versionCode).apply();
+    }
+
+    /**
+     * @return the wall-clock time the install of a downloaded update was requested, or 0 if unknown
+     */
+    long getCompleteUpdateTime() {
+        return preferences.getLong(KEY_COMPLETE_UPDATE_TIME, 0);
+    }
+
+    void setCompleteUpdateTime(long completeUpdateTime) {
+        preferences.edit().putLong(KEY_COMPLETE_UPDATE_TIME, completeUpdateTime).apply();
+    }
+
+    /**
+     * Returns whether the background refresh deferred a flexible update start to the next launch.
+     * The start stays deferred until an update flow is started, or no update is left.
+     *
+     * @return true if a flexible update should start
+     */
+    boolean isDeferredFlexibleStart() {
+        return preferences.getBoolean(KEY_DEFERRED_FLEXIBLE_START, false);
+    }
+
+    void setDeferredFlexibleStart(boolean deferredFlexibleStart) {
+        if (isDeferredFlexibleStart() != deferredFlexibleStart)
+            preferences.edit().putBoolean(KEY_DEFERRED_FLEXIBLE_START, deferredFlexibleStart).apply();
+    }
+
+    /**
+     * @return the interval of the background refresh, or 0 if it is not scheduled
+     */
+    long getPrefetchInterval() {
+        return preferences.getLong(KEY_PREFETCH_INTERVAL, 0);
+    }
+
+    void setPrefetchInterval(long intervalMillis) {
+        preferences.edit().putLong(KEY_PREFETCH_INTERVAL, intervalMillis).apply();
+    }
+}
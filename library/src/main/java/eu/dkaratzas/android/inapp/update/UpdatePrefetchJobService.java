@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+
+import androidx.annotation.RequiresApi;
+
+import com.google.android.play.core.install.model.AppUpdateType;
+import com.google.android.play.core.install.model.UpdateAvailability;
+
+import java.util.List;
+
+/**
+ * Periodically refreshes the update status in the background, so it can be served
+ * at launch without waiting for Google Play.
+ * <p>
+ * The result is published through {@link SharedUpdateStatus}, and reported by the next
+ * {@link InAppUpdateManager} right away. Scheduled by {@link InAppUpdateManager#backgroundPrefetch(long, boolean, boolean)}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class UpdatePrefetchJobService extends JobService {
+
+    static final int JOB_ID = 64536;
+    private static final String LOG_TAG = "UpdatePrefetchJob";
+    private static final String EXTRA_START_FLEXIBLE_UPDATE = "start_flexible_update";
+
+    /**
+     * Schedules the periodic refresh, unless it is already scheduled with the same parameters.
+     * On Android 7.0 and higher, an interval below {@link JobInfo#getMinPeriodMillis()} is raised to it,
+     * as JobScheduler does, so that the pending job is recognized.
+     *
+     * @param context             the context
+     * @param intervalMillis      the refresh interval
+     * @param whileCharging       true to refresh while charging, false while the device is idle
+     * @param startFlexibleUpdate true to start a flexible update at the next launch, when the refresh finds one
+     */
+    static void schedule(Context context, long intervalMillis, boolean whileCharging, boolean startFlexibleUpdate) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null)
+            return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            intervalMillis = Math.max(intervalMillis, JobInfo.getMinPeriodMillis());
+
+        new UpdatePreferences(context).setPrefetchInterval(intervalMillis);
+
+        // Rescheduling would restart the period on every launch, only replace a job with other parameters.
+        List<JobInfo> pendingJobs = jobScheduler.getAllPendingJobs();
+        for (JobInfo jobInfo : pendingJobs) {
+            if (jobInfo.getId() == JOB_ID
+                    && jobInfo.getIntervalMillis() == intervalMillis
+                    && jobInfo.isRequireCharging() == whileCharging
+                    && jobInfo.isRequireDeviceIdle() == !whileCharging
+                    && isStartFlexibleUpdate(jobInfo.getExtras()) == startFlexibleUpdate)
+                return;
+        }
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putInt(EXTRA_START_FLEXIBLE_UPDATE, startFlexibleUpdate ? 1 : 0);
+
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID, new ComponentName(context, UpdatePrefetchJobService.class))
+                .setPeriodic(intervalMillis)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setExtras(extras);
+
+        if (whileCharging)
+            builder.setRequiresCharging(true);
+        else
+            builder.setRequiresDeviceIdle(true);
+
+        jobScheduler.schedule(builder.build());
+    }
+
+    /**
+     * Cancels the periodic refresh.
+     *
+     * @param context the context
+     */
+    static void cancel(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler != null)
+            jobScheduler.cancel(JOB_ID);
+
+        new UpdatePreferences(context).setPrefetchInterval(0);
+    }
+
+    private static boolean isStartFlexibleUpdate(PersistableBundle extras) {
+        return extras.getInt(EXTRA_START_FLEXIBLE_UPDATE) == 1;
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final boolean startFlexibleUpdate = isStartFlexibleUpdate(params.getExtras());
+
+        // Through the coordinator, the answer is shared with a check of a running activity and published once.
+        InAppUpdateCoordinator coordinator = InAppUpdateCoordinator.getInstance(this);
+        coordinator.checkForUpdate(coordinator.getPlayBackend(), false, new UpdateBackend.Callback() {
+            @Override
+            public void onUpdateStatus(UpdateSnapshot snapshot, long bytesDownloaded, long totalBytesToDownload) {
+                // Google Play only starts a flexible download from an activity, defer it to the next launch.
+                if (startFlexibleUpdate
+                        && snapshot.updateAvailability() == UpdateAvailability.UPDATE_AVAILABLE
+                        && snapshot.isUpdateTypeAllowed(AppUpdateType.FLEXIBLE)) {
+                    new UpdatePreferences(getApplicationContext()).setDeferredFlexibleStart(true);
+                }
+
+                jobFinished(params, false);
+            }
+
+            @Override
+            public void onUpdateError(int code, Throwable error) {
+                UpdateLog.e(LOG_TAG, "error in onStartJob", error);
+                jobFinished(params, true);
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return true;
+    }
+}
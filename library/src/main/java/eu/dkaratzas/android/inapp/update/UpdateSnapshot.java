@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import com.google.android.play.core.appupdate.AppUpdateInfo;
+import com.google.android.play.core.install.model.AppUpdateType;
+import com.google.android.play.core.install.model.UpdateAvailability;
+
+/**
+ * A compact, immutable copy of the last {@link AppUpdateInfo} returned by Google Play,
+ * or of the answer of another {@link UpdateBackend}, that can be persisted and shared between processes.
+ */
+public class UpdateSnapshot {
+
+    /**
+     * Returned by {@link #clientVersionStalenessDays()} when the staleness is unknown.
+     */
+    public static final int STALENESS_UNKNOWN = -1;
+
+    private final int updateAvailability;
+    private final int availableVersionCode;
+    private final int installStatus;
+    private final int updatePriority;
+    private final int clientVersionStalenessDays;
+    private final int allowedUpdateTypes;
+    private final long checkTime;
+
+    UpdateSnapshot(int updateAvailability, int availableVersionCode, int installStatus,
+                   int updatePriority, int clientVersionStalenessDays, int allowedUpdateTypes, long checkTime) {
+        this.updateAvailability = updateAvailability;
+        this.availableVersionCode = availableVersionCode;
+        this.installStatus = installStatus;
+        this.updatePriority = updatePriority;
+        this.clientVersionStalenessDays = clientVersionStalenessDays;
+        this.allowedUpdateTypes = allowedUpdateTypes;
+        this.checkTime = checkTime;
+    }
+
+    /**
+     * Returns the bit set of {@link #allowedUpdateTypes()} for the given update types.
+     *
+     * @param appUpdateTypes the {@link AppUpdateType} values
+     * @return the bit set
+     */
+    static int allowedUpdateTypes(int... appUpdateTypes) {
+        int allowed = 0;
+        for (int appUpdateType : appUpdateTypes) {
+            allowed |= 1 << appUpdateType;
+        }
+        return allowed;
+    }
+
+    static UpdateSnapshot from(AppUpdateInfo appUpdateInfo, long checkTime) {
+        Integer stalenessDays = appUpdateInfo.clientVersionStalenessDays();
+
+        int allowedUpdateTypes = 0;
+        if (appUpdateInfo.isUpdateTypeAllowed(AppUpdateType.FLEXIBLE))
+            allowedUpdateTypes |= allowedUpdateTypes(AppUpdateType.FLEXIBLE);
+        if (appUpdateInfo.isUpdateTypeAllowed(AppUpdateType.IMMEDIATE))
+            allowedUpdateTypes |= allowedUpdateTypes(AppUpdateType.IMMEDIATE);
+
+        return new UpdateSnapshot(appUpdateInfo.updateAvailability(),
+                appUpdateInfo.availableVersionCode(),
+                appUpdateInfo.installStatus(),
+                appUpdateInfo.updatePriority(),
+                stalenessDays != null ? stalenessDays : STALENESS_UNKNOWN,
+                allowedUpdateTypes,
+                checkTime);
+    }
+
+    /**
+     * Returns a copy with another install status, for the install state updates of a running update.
+     *
+     * @param installStatus one of the {@link com.google.android.play.core.install.model.InstallStatus} values
+     * @return the copy
+     */
+    UpdateSnapshot withInstallStatus(int installStatus) {
+        return new UpdateSnapshot(updateAvailability, availableVersionCode, installStatus,
+                updatePriority, clientVersionStalenessDays, allowedUpdateTypes, checkTime);
+    }
+
+    /**
+     * Whether the snapshot no longer describes the app: it is older than the given age,
+     * or the update it reports is already installed.
+     *
+     * @param installedVersionCode the versionCode of the installed app
+     * @param maxAgeMillis         the age after which the snapshot is stale
+     * @return true if the snapshot is stale
+     */
+    boolean isStale(long installedVersionCode, long maxAgeMillis) {
+        long age = System.currentTimeMillis() - checkTime;
+        if (age < 0 || age > maxAgeMillis)
+            return true;
+
+        return updateAvailability != UpdateAvailability.UPDATE_NOT_AVAILABLE
+                && availableVersionCode <= installedVersionCode;
+    }
+
+    /**
+     * @return one of the {@link com.google.android.play.core.install.model.UpdateAvailability} values
+     */
+    public int updateAvailability() {
+        return updateAvailability;
+    }
+
+    public int availableVersionCode() {
+        return availableVersionCode;
+    }
+
+    /**
+     * @return one of the {@link com.google.android.play.core.install.model.InstallStatus} values
+     */
+    public int installStatus() {
+        return installStatus;
+    }
+
+    public int updatePriority() {
+        return updatePriority;
+    }
+
+    /**
+     * @return the days since the update became available, or {@link #STALENESS_UNKNOWN}
+     */
+    public int clientVersionStalenessDays() {
+        return clientVersionStalenessDays;
+    }
+
+    /**
+     * @param appUpdateType one of the {@link AppUpdateType} values
+     * @return true if the update can be installed with the given flow
+     */
+    public boolean isUpdateTypeAllowed(int appUpdateType) {
+        return (allowedUpdateTypes & allowedUpdateTypes(appUpdateType)) != 0;
+    }
+
+    int allowedUpdateTypes() {
+        return allowedUpdateTypes;
+    }
+
+    /**
+     * @return the time of the check, in milliseconds since the epoch
+     */
+    public long checkTime() {
+        return checkTime;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Emits {@link Trace} sections and counters, so the work of the library shows up
+ * as named slices in Perfetto and systrace.
+ * <p>
+ * Disabled by default, in which case every call returns after a single field check. The switch is
+ * process-wide, so it can be set before the first manager is created and its init section is traced.
+ * Must be used on the main thread, sections have to begin and end on the same thread.
+ */
+class UpdateTrace {
+
+    static final String SECTION_INIT = "InAppUpdate:init";
+    static final String SECTION_CHECK_FOR_UPDATE = "InAppUpdate:checkForUpdate";
+    static final String SECTION_CHECK_FOR_UPDATE_RESULT = "InAppUpdate:checkForUpdate:onSuccess";
+    static final String SECTION_CHECK_NEW_APP_VERSION_STATE = "InAppUpdate:checkNewAppVersionState";
+    static final String SECTION_CHECK_NEW_APP_VERSION_STATE_RESULT = "InAppUpdate:checkNewAppVersionState:onSuccess";
+    static final String SECTION_SETUP_SNACKBAR = "InAppUpdate:setupSnackbar";
+    static final String SECTION_INSTALL_STATE_DISPATCH = "InAppUpdate:onStateUpdate";
+    static final String SECTION_MODULE_STATE_DISPATCH = "InAppUpdate:onModuleStateUpdate";
+    static final String SECTION_REPORT_STATUS = "InAppUpdate:reportStatus";
+    static final String SECTION_REPORT_ERROR = "InAppUpdate:reportUpdateError";
+
+    static final String COUNTER_BYTES_DOWNLOADED = "InAppUpdate:bytesDownloaded";
+    static final String COUNTER_TOTAL_BYTES = "InAppUpdate:totalBytesToDownload";
+    static final String COUNTER_MODULE_BYTES_DOWNLOADED = "InAppUpdate:moduleBytesDownloaded";
+
+    private static volatile boolean enabled = false;
+
+    static void setEnabled(boolean enabled) {
+        UpdateTrace.enabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begins a section, that must be closed by {@link #end()} on the same thread.
+     *
+     * @param sectionName one of the section constants
+     */
+    void begin(String sectionName) {
+        if (enabled)
+            Trace.beginSection(sectionName);
+    }
+
+    void end() {
+        if (enabled)
+            Trace.endSection();
+    }
+
+    /**
+     * Sets a counter value. Counters are available from Android 10, ignored on older versions.
+     *
+     * @param counterName the counter name
+     * @param value       the counter value
+     */
+    void counter(String counterName, long value) {
+        if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.setCounter(counterName, value);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+/**
+ * Decides whether an available update is urgent, from its priority and staleness.
+ * <p>
+ * One policy is shared by every decision of a manager: the {@link Constants.UpdateMode#AUTO} mode
+ * escalates urgent updates to the immediate flow, the adaptive cadence checks again without waiting,
+ * and the power policy lets their checks through.
+ */
+class UpdateUrgency {
+
+    static final int DEFAULT_PRIORITY = 4;
+    static final int DEFAULT_STALENESS_DAYS = 30;
+
+    private int priority = DEFAULT_PRIORITY;
+    private int stalenessDays = DEFAULT_STALENESS_DAYS;
+
+    void setThresholds(int priority, int stalenessDays) {
+        this.priority = priority;
+        this.stalenessDays = stalenessDays;
+    }
+
+    /**
+     * @param updatePriority             the priority of the update
+     * @param clientVersionStalenessDays the days since the update became available, or {@link UpdateSnapshot#STALENESS_UNKNOWN}
+     * @return true if the update is urgent
+     */
+    boolean isUrgent(int updatePriority, int clientVersionStalenessDays) {
+        if (updatePriority >= priority)
+            return true;
+
+        return clientVersionStalenessDays != UpdateSnapshot.STALENESS_UNKNOWN && clientVersionStalenessDays >= stalenessDays;
+    }
+
+    boolean isUrgent(UpdateSnapshot snapshot) {
+        return isUrgent(snapshot.updatePriority(), snapshot.clientVersionStalenessDays());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ApkDownloader} against a local HTTP server that supports range requests.
+ */
+public class ApkDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private String lastRange;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        // Larger than the buffer, so the download takes several reads.
+        content = new byte[ApkDownloader.BUFFER_SIZE * 3 + 123];
+        new Random(42).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/app.apk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                lastRange = exchange.getRequestHeaders().getFirst("Range");
+
+                int offset = 0;
+                int status = 200;
+                if (lastRange != null) {
+                    offset = Integer.parseInt(lastRange.substring("bytes=".length(), lastRange.length() - 1));
+                    status = 206;
+                }
+
+                if (offset >= content.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+
+                exchange.sendResponseHeaders(status, content.length - offset);
+                OutputStream body = exchange.getResponseBody();
+                body.write(content, offset, content.length - offset);
+                body.close();
+            }
+        });
+        server.start();
+
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/app.apk");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void download_isVerified() throws Exception {
+        File target = new File(folder.getRoot(), "app.apk");
+
+        new ApkDownloader().download(url, target, sha256(content), null);
+
+        assertNull(lastRange);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_resumesPartialFile() throws Exception {
+        File target = new File(folder.getRoot(), "app.apk");
+        int partial = ApkDownloader.BUFFER_SIZE + 7;
+        FileOutputStream output = new FileOutputStream(target);
+        output.write(content, 0, partial);
+        output.close();
+
+        final long[] progress = new long[2];
+        new ApkDownloader().download(url, target, sha256(content), new ApkDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long bytesDownloaded, long totalBytes) {
+                progress[0] = bytesDownloaded;
+                progress[1] = totalBytes;
+            }
+        });
+
+        assertEquals("bytes=" + partial + "-", lastRange);
+        assertEquals(content.length, progress[0]);
+        assertEquals(content.length, progress[1]);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_completeFileIsNotFetchedAgain() throws Exception {
+        File target = new File(folder.getRoot(), "app.apk");
+        Files.write(target.toPath(), content);
+
+        new ApkDownloader().download(url, target, sha256(content), null);
+
+        assertEquals("bytes=" + content.length + "-", lastRange);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_checksumMismatchDeletesFile() throws Exception {
+        File target = new File(folder.getRoot(), "app.apk");
+        byte[] other = Arrays.copyOf(content, content.length);
+        other[0]++;
+
+        try {
+            new ApkDownloader().download(url, target, sha256(other), null);
+            fail("Expected a checksum mismatch");
+        } catch (IOException expected) {
+            assertFalse(target.exists());
+        }
+    }
+
+    @Test
+    public void download_lockedTargetIsNotWritten() throws Exception {
+        File target = new File(folder.getRoot(), "app.apk");
+        FileChannel lockChannel = new RandomAccessFile(target.getPath() + ApkDownloader.LOCK_SUFFIX, "rw").getChannel();
+        lockChannel.lock();
+
+        try {
+            new ApkDownloader().download(url, target, sha256(content), null);
+            fail("Expected the download to be refused");
+        } catch (IOException expected) {
+            assertFalse(target.exists());
+        } finally {
+            lockChannel.close();
+        }
+
+        // The lock is released once the other download is done.
+        new ApkDownloader().download(url, target, sha256(content), null);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import com.google.android.play.core.install.model.InstallStatus;
+import com.google.android.play.core.install.model.UpdateAvailability;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link UpdateCheckScheduler} against an in-memory check history and a fixed clock.
+ */
+public class UpdateCheckSchedulerTest {
+
+    private static final long MIN_INTERVAL = 1000;
+    private static final long MAX_INTERVAL = 8000;
+    private static final long START_TIME = 1_000_000;
+
+    private FakeCheckHistory history;
+    private UpdateUrgency urgency;
+    private long now;
+    private UpdateCheckScheduler scheduler;
+
+    private static class FakeCheckHistory implements UpdateCheckScheduler.CheckHistory {
+        long lastCheckTime = 0;
+        Long checkInterval = null;
+
+        @Override
+        public long getLastCheckTime() {
+            return lastCheckTime;
+        }
+
+        @Override
+        public long getCheckInterval(long defaultInterval) {
+            return checkInterval != null ? checkInterval : defaultInterval;
+        }
+
+        @Override
+        public void setCheckResult(long checkTime, long nextInterval) {
+            lastCheckTime = checkTime;
+            checkInterval = nextInterval;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        history = new FakeCheckHistory();
+        urgency = new UpdateUrgency();
+        now = START_TIME;
+        scheduler = new UpdateCheckScheduler(history, urgency, MIN_INTERVAL, MAX_INTERVAL) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    private static UpdateSnapshot snapshot(int updateAvailability, int updatePriority, int stalenessDays) {
+        return new UpdateSnapshot(updateAvailability, 2, InstallStatus.UNKNOWN, updatePriority, stalenessDays, 0, START_TIME);
+    }
+
+    @Test
+    public void isCheckDue_neverChecked() {
+        assertTrue(scheduler.isCheckDue());
+    }
+
+    @Test
+    public void isCheckDue_afterTheInterval() {
+        scheduler.onCheckResult(snapshot(UpdateAvailability.UPDATE_NOT_AVAILABLE, 0, UpdateSnapshot.STALENESS_UNKNOWN));
+
+        now += MIN_INTERVAL - 1;
+        assertFalse(scheduler.isCheckDue());
+
+        now += 1;
+        assertTrue(scheduler.isCheckDue());
+    }
+
+    @Test
+    public void isCheckDue_clockWentBackwards() {
+        scheduler.onCheckResult(snapshot(UpdateAvailability.UPDATE_NOT_AVAILABLE, 0, UpdateSnapshot.STALENESS_UNKNOWN));
+
+        now -= 1;
+        assertTrue(scheduler.isCheckDue());
+    }
+
+    @Test
+    public void isCheckDue_storedIntervalIsCappedAtMax() {
+        history.lastCheckTime = START_TIME;
+        history.checkInterval = MAX_INTERVAL * 10;
+
+        now += MAX_INTERVAL;
+        assertTrue(scheduler.isCheckDue());
+    }
+
+    @Test
+    public void onCheckResult_noUpdateDoublesTheIntervalUpToMax() {
+        UpdateSnapshot noUpdate = snapshot(UpdateAvailability.UPDATE_NOT_AVAILABLE, 0, UpdateSnapshot.STALENESS_UNKNOWN);
+        long[] expected = {MIN_INTERVAL, 2000, 4000, MAX_INTERVAL, MAX_INTERVAL};
+
+        for (long interval : expected) {
+            scheduler.onCheckResult(noUpdate);
+            assertEquals(interval, (long) history.checkInterval);
+            assertEquals(now, history.lastCheckTime);
+        }
+    }
+
+    @Test
+    public void onCheckResult_availableUpdateResetsTheInterval() {
+        history.checkInterval = MAX_INTERVAL;
+
+        scheduler.onCheckResult(snapshot(UpdateAvailability.UPDATE_AVAILABLE, 0, 1));
+        assertEquals(MIN_INTERVAL, (long) history.checkInterval);
+    }
+
+    @Test
+    public void onCheckResult_urgentUpdateIsDueRightAway() {
+        scheduler.onCheckResult(snapshot(UpdateAvailability.UPDATE_AVAILABLE, UpdateUrgency.DEFAULT_PRIORITY, 1));
+
+        assertEquals(0, (long) history.checkInterval);
+        assertTrue(scheduler.isCheckDue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsMaxBelowMin() {
+        new UpdateCheckScheduler(history, urgency, MAX_INTERVAL, MIN_INTERVAL);
+    }
+}
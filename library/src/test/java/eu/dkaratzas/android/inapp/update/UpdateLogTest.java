@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the placeholder formatting of {@link UpdateLog}, and that only loggable messages reach the logger.
+ */
+public class UpdateLogTest {
+
+    private static class RecordingLogger implements InAppUpdateLogger {
+        final int minPriority;
+        final List<String> messages = new ArrayList<>();
+
+        RecordingLogger(int minPriority) {
+            this.minPriority = minPriority;
+        }
+
+        @Override
+        public boolean isLoggable(int priority) {
+            return priority >= minPriority;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable throwable) {
+            messages.add(tag + ": " + message);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        UpdateLog.setLogger(null);
+    }
+
+    @Test
+    public void format_replacesThePlaceholder() {
+        assertEquals("Version Code: 42", UpdateLog.format("Version Code: {}", "42"));
+        assertEquals("a 42 b", UpdateLog.format("a {} b", "42"));
+        assertEquals("42", UpdateLog.format("{}", "42"));
+    }
+
+    @Test
+    public void format_replacesOnlyTheFirstPlaceholder() {
+        assertEquals("1 and {}", UpdateLog.format("{} and {}", "1"));
+    }
+
+    @Test
+    public void format_withoutPlaceholderKeepsTheMessage() {
+        assertEquals("No update", UpdateLog.format("No update", "42"));
+        assertEquals("", UpdateLog.format("", "42"));
+    }
+
+    @Test
+    public void format_emptyArgument() {
+        assertEquals("Version Code: ", UpdateLog.format("Version Code: {}", ""));
+    }
+
+    @Test
+    public void log_formatsForLoggablePriorities() {
+        RecordingLogger logger = new RecordingLogger(Log.DEBUG);
+        UpdateLog.setLogger(logger);
+
+        UpdateLog.d("Tag", "Version Code: {}", 42);
+
+        assertEquals(1, logger.messages.size());
+        assertEquals("Tag: Version Code: 42", logger.messages.get(0));
+    }
+
+    @Test
+    public void log_skipsOtherPriorities() {
+        RecordingLogger logger = new RecordingLogger(Log.WARN);
+        UpdateLog.setLogger(logger);
+
+        UpdateLog.d("Tag", "Version Code: {}", 42);
+
+        assertTrue(logger.messages.isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 Dionysios Karatzas
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.dkaratzas.android.inapp.update;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the priority and staleness thresholds of {@link UpdateUrgency}.
+ */
+public class UpdateUrgencyTest {
+
+    private final UpdateUrgency urgency = new UpdateUrgency();
+
+    @Test
+    public void isUrgent_fromThePriorityThreshold() {
+        assertFalse(urgency.isUrgent(UpdateUrgency.DEFAULT_PRIORITY - 1, UpdateSnapshot.STALENESS_UNKNOWN));
+        assertTrue(urgency.isUrgent(UpdateUrgency.DEFAULT_PRIORITY, UpdateSnapshot.STALENESS_UNKNOWN));
+        assertTrue(urgency.isUrgent(5, UpdateSnapshot.STALENESS_UNKNOWN));
+    }
+
+    @Test
+    public void isUrgent_fromTheStalenessThreshold() {
+        assertFalse(urgency.isUrgent(0, UpdateUrgency.DEFAULT_STALENESS_DAYS - 1));
+        assertTrue(urgency.isUrgent(0, UpdateUrgency.DEFAULT_STALENESS_DAYS));
+    }
+
+    @Test
+    public void isUrgent_unknownStalenessIsNotUrgent() {
+        urgency.setThresholds(5, 0);
+
+        assertFalse(urgency.isUrgent(0, UpdateSnapshot.STALENESS_UNKNOWN));
+        assertTrue(urgency.isUrgent(0, 0));
+    }
+
+    @Test
+    public void setThresholds_replacesTheDefaults() {
+        urgency.setThresholds(2, 7);
+
+        assertTrue(urgency.isUrgent(2, UpdateSnapshot.STALENESS_UNKNOWN));
+        assertTrue(urgency.isUrgent(0, 7));
+        assertFalse(urgency.isUrgent(1, 6));
+    }
+
+    @Test
+    public void isUrgent_readsTheSnapshot() {
+        UpdateSnapshot urgent = new UpdateSnapshot(0, 2, 0, UpdateUrgency.DEFAULT_PRIORITY, 1, 0, 1);
+        UpdateSnapshot regular = new UpdateSnapshot(0, 2, 0, UpdateUrgency.DEFAULT_PRIORITY - 1, 1, 0, 1);
+
+        assertTrue(urgency.isUrgent(urgent));
+        assertFalse(urgency.isUrgent(regular));
+    }
+}